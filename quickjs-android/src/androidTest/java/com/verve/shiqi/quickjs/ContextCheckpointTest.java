@@ -0,0 +1,111 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that {@link JSContext#restoreCheckpoint()} undoes what a script does to the globals,
+ * as JSRuntimePool relies on it to reuse JSContexts.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ContextCheckpointTest {
+
+  private JSRuntime jsRuntime;
+  private JSContext jsContext;
+
+  @Before
+  public void setUp() {
+    QuickJS quickJS = new QuickJS.Builder().build();
+    jsRuntime = quickJS.createJSRuntime();
+    jsContext = jsRuntime.createJSContext();
+    jsContext.evaluate("var config = { mode: 'init' }; let counter = 0; function helper() { return 1; }", "init.js");
+    jsContext.checkpoint();
+  }
+
+  @After
+  public void tearDown() {
+    jsContext.close();
+    jsRuntime.close();
+  }
+
+  private String evaluate(String script) {
+    return jsContext.evaluate(script, "test.js", String.class);
+  }
+
+  @Test
+  public void removeNewGlobals() {
+    jsContext.evaluate("globalThis.added = 1; var declared = 2; let bound = 3; const fixed = 4; class Klass {}", "a.js");
+    jsContext.restoreCheckpoint();
+
+    assertEquals("undefined,undefined,undefined,undefined,undefined",
+        evaluate("[typeof added, typeof declared, typeof bound, typeof fixed, typeof Klass].join()"));
+  }
+
+  @Test
+  public void restoreChangedGlobals() {
+    jsContext.evaluate("config = 5; counter = 9; helper = null;", "a.js");
+    jsContext.restoreCheckpoint();
+
+    assertEquals("init,0,1", evaluate("[config.mode, counter, helper()].join()"));
+  }
+
+  @Test
+  public void restoreBuiltIns() {
+    jsContext.evaluate("Array.prototype.foo = 1; String.prototype.trim = () => 'x'; Math.max = null;", "a.js");
+    jsContext.evaluate("Object.freeze(Math); Object.freeze(Object.prototype);", "b.js");
+    jsContext.evaluate("Object.setPrototypeOf(Array.prototype, null);", "c.js");
+    jsContext.restoreCheckpoint();
+
+    assertEquals("undefined,a,2", evaluate("[typeof [].foo, ' a '.trim(), Math.max(1, 2)].join()"));
+    assertEquals("false,false", evaluate("[Object.isFrozen(Math), Object.isFrozen(Object.prototype)].join()"));
+    assertEquals("true", evaluate("String(Object.getPrototypeOf(Array.prototype) === Object.prototype)"));
+  }
+
+  @Test
+  public void restoreTwice() {
+    for (int round = 0; round < 2; round++) {
+      // Declaring the same bindings again must not throw a redeclaration error
+      jsContext.evaluate("let bound = 1; const fixed = 2; class Klass {} config.mode = 'changed';", "a.js");
+      jsContext.evaluate("Array.prototype.foo = 1; Object.freeze(Math);", "b.js");
+      jsContext.restoreCheckpoint();
+
+      assertEquals("undefined,undefined,undefined", evaluate("[typeof bound, typeof fixed, typeof Klass].join()"));
+      assertEquals("undefined,false", evaluate("[typeof [].foo, Object.isFrozen(Math)].join()"));
+      assertEquals("1", evaluate("String(helper())"));
+    }
+  }
+
+  @Test
+  public void restoreWithoutCheckpoint() {
+    JSContext other = jsRuntime.createJSContext();
+    try {
+      assertThrows(IllegalStateException.class, other::restoreCheckpoint);
+    } finally {
+      other.close();
+    }
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import androidx.benchmark.BenchmarkState;
+import androidx.benchmark.junit4.BenchmarkRule;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Compares describing a value in one native call, as JSContext.wrapAsJSValue does,
+ * with the previous sequence of one native call per question about the value.
+ *
+ * Native calls per value, including reading the property and releasing the native value:
+ * <pre>
+ *              float64   object
+ * previous     4         6
+ * described    2         3
+ * </pre>
+ * The float64 handle is released by the describing call itself, and its bits come back in the description.
+ * Run with {@code ./gradlew :quickjs-android:connectedAndroidTest} on a device.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ValueCrossingBenchmark {
+
+  @Rule
+  public BenchmarkRule benchmarkRule = new BenchmarkRule();
+
+  private JSRuntime jsRuntime;
+  private JSContext jsContext;
+  private JSObject holder;
+
+  @Before
+  public void setUp() {
+    QuickJS quickJS = new QuickJS.Builder().build();
+    jsRuntime = quickJS.createJSRuntime();
+    jsContext = jsRuntime.createJSContext();
+    jsContext.evaluate("var holder = { number: 1.5, object: {} };", "holder.js");
+    holder = jsContext.getGlobalObject().getProperty("holder").cast(JSObject.class);
+  }
+
+  @After
+  public void tearDown() {
+    jsContext.close();
+    jsRuntime.close();
+  }
+
+  @Test
+  public void float64Previous() {
+    BenchmarkState state = benchmarkRule.getState();
+    long context = jsContext.pointer;
+    while (state.keepRunning()) {
+      long value = QuickJS.getValueProperty(context, holder.pointer, "number");
+      if (QuickJS.getValueTag(value) == JSContext.TYPE_FLOAT64) {
+        new JSFloat64(0, jsContext, QuickJS.getValueFloat64(value));
+      }
+      QuickJS.destroyValue(context, value);
+    }
+  }
+
+  @Test
+  public void float64Described() {
+    BenchmarkState state = benchmarkRule.getState();
+    long context = jsContext.pointer;
+    int[] description = new int[JSContext.DESCRIPTION_SIZE];
+    while (state.keepRunning()) {
+      long value = QuickJS.getValueProperty(context, holder.pointer, "number");
+      QuickJS.describeValue(context, value, description);
+      if (description[0] == JSContext.TYPE_FLOAT64) {
+        long bits = ((long) description[1] << 32) | (description[2] & 0xffffffffL);
+        new JSFloat64(0, jsContext, Double.longBitsToDouble(bits));
+      }
+    }
+  }
+
+  @Test
+  public void objectPrevious() {
+    BenchmarkState state = benchmarkRule.getState();
+    long context = jsContext.pointer;
+    while (state.keepRunning()) {
+      long value = QuickJS.getValueProperty(context, holder.pointer, "object");
+      if (QuickJS.getValueTag(value) == JSContext.TYPE_OBJECT
+          && !QuickJS.isValueFunction(context, value)
+          && !QuickJS.isValueArray(context, value)
+          && !QuickJS.isValueArrayBuffer(context, value)) {
+        QuickJS.getValueJavaObject(context, value);
+      }
+      QuickJS.destroyValue(context, value);
+    }
+  }
+
+  @Test
+  public void objectDescribed() {
+    BenchmarkState state = benchmarkRule.getState();
+    long context = jsContext.pointer;
+    int[] description = new int[JSContext.DESCRIPTION_SIZE];
+    while (state.keepRunning()) {
+      long value = QuickJS.getValueProperty(context, holder.pointer, "object");
+      QuickJS.describeValue(context, value, description);
+      QuickJS.destroyValue(context, value);
+    }
+  }
+}
@@ -44,6 +44,13 @@
         }                                                                       \
     } while (0)
 
+#define CHECK_FALSE(ENV, STATEMENT, MESSAGE)                                    \
+    do {                                                                        \
+        if (!(STATEMENT)) {                                                     \
+            THROW_ILLEGAL_STATE_EXCEPTION((ENV), (MESSAGE));                    \
+        }                                                                       \
+    } while (0)
+
 #define CHECK_FALSE_RET(ENV, STATEMENT, MESSAGE)                                \
     do {                                                                        \
         if (!(STATEMENT)) {                                                     \
@@ -2,6 +2,8 @@
 
 #include "java-method.h"
 #include "java-helper.h"
+#include "java-registry.h"
+#include "java-value.h"
 
 // TODO append the java exception to the js exception
 #define CHECK_JAVA_EXCEPTION_NO(ENV)                                 \
@@ -37,16 +39,24 @@ static int js_value_to_java_value(JSContext *ctx, JNIEnv *env, jobject js_contex
 
 static JSClassID java_method_class_id;
 
+// Local references taken by a call: js context, callee, return type, result,
+// and an argument type and an argument for each argument
+#define LOCAL_FRAME_CAPACITY(ARGC) (2 * (ARGC) + 8)
+
 typedef JSValue (*JavaMethodCaller)(JSContext *ctx, JNIEnv *env, jobject js_context, jobject return_type, jobject callee, jmethodID method, jvalue *argv);
 
 typedef struct {
     JavaVM *vm;
-    jobject js_context;
-    jobject callee;
+    // The context of js_context, its handles are released by it.
+    // Held by the function, which may be called from a sibling context after it's closed
+    JSContext *ctx;
+    // Slots in ObjectRegistry
+    jint js_context;
+    jint callee;
     jmethodID method;
-    jobject return_type;
+    jint return_type;
     int arg_count;
-    jobject *arg_types;
+    jint *arg_types;
     JavaMethodCaller caller;
     jboolean is_callback_method;
 } JavaMethodData;
@@ -72,25 +82,39 @@ static JSValue java_callback_method_call(
 
     OBTAIN_ENV(data->vm);
 
+    if ((*env)->PushLocalFrame(env, LOCAL_FRAME_CAPACITY(argc)) < 0) {
+        (*env)->ExceptionClear(env);
+        RELEASE_ENV(data->vm);
+        JS_FreeValue(ctx, array);
+        return JS_ThrowOutOfMemory(ctx);
+    }
+
+    jobject js_context = QJ_GetRegisteredObject(env, data->js_context);
+
     // The first argument is JSContext
     // The second argument is the array
     int arg_count = 2;
     int arg_offset = 1;
     jvalue java_argv[arg_count];
-    java_argv[0].l = data->js_context;
+    java_argv[0].l = js_context;
     for (int i = 0; i < argc; i++) {
-        if (js_value_to_java_value(ctx, env, data->js_context, data->arg_types[arg_offset + i], argv[i], java_argv + arg_offset + i)) {
+        jobject arg_type = QJ_GetRegisteredObject(env, data->arg_types[arg_offset + i]);
+        if (js_value_to_java_value(data->ctx, env, js_context, arg_type, argv[i], java_argv + arg_offset + i)) {
             goto fail;
         }
     }
 
-    JSValue result = data->caller(ctx, env, data->js_context, data->return_type, data->callee, data->method, java_argv);
+    jobject return_type = QJ_GetRegisteredObject(env, data->return_type);
+    jobject callee = QJ_GetRegisteredObject(env, data->callee);
+    JSValue result = data->caller(ctx, env, js_context, return_type, callee, data->method, java_argv);
 
+    (*env)->PopLocalFrame(env, NULL);
     RELEASE_ENV(data->vm);
     JS_FreeValue(ctx, array);
     return result;
 
 fail:
+    (*env)->PopLocalFrame(env, NULL);
     RELEASE_ENV(data->vm);
     JS_FreeValue(ctx, array);
     return JS_ThrowInternalError(ctx, "Failed to convert js value to java value");
@@ -109,20 +133,33 @@ static JSValue java_normal_method_call(
 
     OBTAIN_ENV(data->vm);
 
+    if ((*env)->PushLocalFrame(env, LOCAL_FRAME_CAPACITY(argc)) < 0) {
+        (*env)->ExceptionClear(env);
+        RELEASE_ENV(data->vm);
+        return JS_ThrowOutOfMemory(ctx);
+    }
+
+    jobject js_context = QJ_GetRegisteredObject(env, data->js_context);
+
     // Convert js value arguments to java value arguments
     jvalue java_argv[argc];
     for (int i = 0; i < argc; i++) {
-        if (js_value_to_java_value(ctx, env, data->js_context, data->arg_types[i], argv[i], java_argv + i)) {
+        jobject arg_type = QJ_GetRegisteredObject(env, data->arg_types[i]);
+        if (js_value_to_java_value(data->ctx, env, js_context, arg_type, argv[i], java_argv + i)) {
             goto fail;
         }
     }
 
-    JSValue result = data->caller(ctx, env, data->js_context, data->return_type, data->callee, data->method, java_argv);
+    jobject return_type = QJ_GetRegisteredObject(env, data->return_type);
+    jobject callee = QJ_GetRegisteredObject(env, data->callee);
+    JSValue result = data->caller(ctx, env, js_context, return_type, callee, data->method, java_argv);
 
+    (*env)->PopLocalFrame(env, NULL);
     RELEASE_ENV(data->vm);
     return result;
 
 fail:
+    (*env)->PopLocalFrame(env, NULL);
     RELEASE_ENV(data->vm);
     return JS_ThrowInternalError(ctx, "Failed to convert js value to java value");
 }
@@ -136,6 +173,10 @@ static JSValue java_method_call(
     int __unused flags
 ) {
     JavaMethodData *data = JS_GetOpaque(func_obj, java_method_class_id);
+    // The handle slabs are freed when the JSContext is closed in java
+    if (JS_GetContextOpaque(data->ctx) == NULL) {
+        return JS_ThrowInternalError(ctx, "The JSContext of the java method is closed");
+    }
     if (data->is_callback_method) {
         return java_callback_method_call(ctx, data, argc, argv);
     } else {
@@ -149,28 +190,38 @@ static void java_method_finalizer(JSRuntime *rt, JSValue val) {
     OBTAIN_ENV(data->vm);
 
     if (env != NULL) {
-        (*env)->DeleteGlobalRef(env, data->callee);
-        (*env)->DeleteGlobalRef(env, data->js_context);
-        (*env)->DeleteGlobalRef(env, data->return_type);
+        QJ_UnregisterObject(env, data->callee);
+        QJ_UnregisterObject(env, data->js_context);
+        QJ_UnregisterObject(env, data->return_type);
         for (int i = 0; i < data->arg_count; i++) {
-            (*env)->DeleteGlobalRef(env, data->arg_types[i]);
+            QJ_UnregisterObject(env, data->arg_types[i]);
         }
     }
 
     RELEASE_ENV(data->vm);
 
+    JS_FreeContext(data->ctx);
     js_free_rt(rt, data->arg_types);
     js_free_rt(rt, data);
 }
 
+static void java_method_gc_mark(JSRuntime *rt, JSValueConst val, JS_MarkFunc *mark_func) {
+    JavaMethodData *data = JS_GetOpaque(val, java_method_class_id);
+    // Like the realm of a bytecode function, the header comes first in JSContext
+    mark_func(rt, (JSGCObjectHeader *) data->ctx);
+}
+
 static JSClassDef java_method_class = {
     "JavaMethod",
     .call = java_method_call,
-    .finalizer = java_method_finalizer
+    .finalizer = java_method_finalizer,
+    .gc_mark = java_method_gc_mark
 };
 
 int java_method_init_context(JSContext *ctx) {
     JS_NewClassID(&java_method_class_id);
+    // Classes are shared by all contexts of the runtime
+    if (JS_IsRegisteredClass(JS_GetRuntime(ctx), java_method_class_id)) return 0;
     if (JS_NewClass(JS_GetRuntime(ctx), java_method_class_id, &java_method_class)) return -1;
     return 0;
 }
@@ -218,15 +269,15 @@ int java_method_init(JNIEnv *env) {
     } while (0)
 
     GET_STATIC_METHOD(js_value_to_java_value_method, "jsValueToJavaValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;J)Ljava/lang/Object;");
-    GET_STATIC_METHOD(java_boolean_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;Z)J");
-    GET_STATIC_METHOD(java_char_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;C)J");
-    GET_STATIC_METHOD(java_byte_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;B)J");
-    GET_STATIC_METHOD(java_short_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;S)J");
-    GET_STATIC_METHOD(java_int_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;I)J");
-    GET_STATIC_METHOD(java_long_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;J)J");
-    GET_STATIC_METHOD(java_float_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;F)J");
-    GET_STATIC_METHOD(java_double_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;D)J");
-    GET_STATIC_METHOD(java_object_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;Ljava/lang/Object;)J");
+    GET_STATIC_METHOD(java_boolean_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;Z)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_char_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;C)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_byte_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;B)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_short_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;S)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_int_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;I)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_long_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;J)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_float_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;F)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_double_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;D)Lcom/verve/shiqi/quickjs/JSValue;");
+    GET_STATIC_METHOD(java_object_to_js_value_method, "javaValueToJSValue", "(Lcom/verve/shiqi/quickjs/JSContext;Ljava/lang/reflect/Type;Ljava/lang/Object;)Lcom/verve/shiqi/quickjs/JSValue;");
     GET_STATIC_METHOD(is_primitive_type_method, "isPrimitiveType", "(Ljava/lang/reflect/Type;)Z");
     GET_STATIC_METHOD(is_same_type_method, "isSameType", "(Ljava/lang/reflect/Type;Ljava/lang/reflect/Type;)Z");
     GET_STATIC_METHOD(unbox_boolean_method, "unbox", "(Ljava/lang/Boolean;)Z");
@@ -295,17 +346,6 @@ static int unbox_primitive_type(JNIEnv *env, jobject type, jvalue *value) {
     return -1;
 }
 
-#define COPY_JS_VALUE(JS_CONTEXT, JS_VALUE, RESULT)                                    \
-    do {                                                                               \
-        void *__copy__ = js_malloc_rt(JS_GetRuntime(JS_CONTEXT), sizeof(JSValue));     \
-        if (__copy__ != NULL) {                                                        \
-            memcpy(__copy__, &(JS_VALUE), sizeof(JSValue));                            \
-            (RESULT) = __copy__;                                                       \
-        } else {                                                                       \
-            JS_FreeValue((JS_CONTEXT), (JS_VALUE));                                    \
-        }                                                                              \
-    } while (0)
-
 static int js_value_to_java_value(
     JSContext *ctx,
     JNIEnv *env,
@@ -314,13 +354,13 @@ static int js_value_to_java_value(
     JSValueConst value,
     jvalue *result
 ) {
-    JSValue *copy = NULL;
+    jlong copy = 0;
     // Duplication is required
     JS_DupValue(ctx, value);
     COPY_JS_VALUE(ctx, value, copy);
-    if (copy == NULL) return -1;
+    if (copy == 0) return -1;
 
-    result->l = (*env)->CallStaticObjectMethod(env, jni_helper_class, js_value_to_java_value_method, js_context, type, (jlong) copy);
+    result->l = (*env)->CallStaticObjectMethod(env, jni_helper_class, js_value_to_java_value_method, js_context, type, copy);
     CHECK_JAVA_EXCEPTION_NO(env);
 
     return unbox_primitive_type(env, type, result);
@@ -358,9 +398,14 @@ static JSValue call_void_java_static_method(
 static JSValue FUNCTION_NAME(JSContext *ctx, JNIEnv *env, jobject js_context, jobject return_type, jobject callee, jmethodID method, jvalue *argv) { \
     JAVA_TYPE java_result = (*env)->JAVA_CALLER(env, callee, method, argv);                                                                          \
     CHECK_JAVA_EXCEPTION_JS_EXCEPTION(ctx, env);                                                                                                     \
-    JSValue *result = (JSValue *) (*env)->CallStaticLongMethod(env, jni_helper_class, JAVA_CONVERTER, js_context, return_type, java_result);         \
+    jobject js_result = (*env)->CallStaticObjectMethod(env, jni_helper_class, JAVA_CONVERTER, js_context, return_type, java_result);                 \
+    CHECK_JAVA_EXCEPTION_JS_EXCEPTION(ctx, env);                                                                                                     \
+    JSValue result;                                                                                                                                  \
+    int failed = QJ_GetJavaValue(env, js_result, &result);                                                                                           \
+    (*env)->DeleteLocalRef(env, js_result);                                                                                                          \
     CHECK_JAVA_EXCEPTION_JS_EXCEPTION(ctx, env);                                                                                                     \
-    return JS_DupValue(ctx, *result);                                                                                                                \
+    if (failed) return JS_ThrowInternalError(ctx, "Failed to convert java value to js value");                                                       \
+    return JS_DupValue(ctx, result);                                                                                                                 \
 }
 
 FUNCTION_CALL_JAVA_METHOD(call_boolean_java_method, jboolean, CallBooleanMethodA, java_boolean_to_js_value_method)
@@ -411,6 +456,24 @@ static JavaMethodCaller select_java_method_caller(JNIEnv *env, jboolean is_stati
     return NULL;
 }
 
+static void unregister_objects(JNIEnv *env, int count, const jint *slots) {
+    for (int i = 0; i < count; i++) {
+        QJ_UnregisterObject(env, slots[i]);
+    }
+}
+
+// Registers all objects or none of them
+static int register_objects(JNIEnv *env, int count, jobject *objects, jint *slots) {
+    for (int i = 0; i < count; i++) {
+        slots[i] = QJ_RegisterObject(env, objects[i]);
+        if (slots[i] < 0) {
+            unregister_objects(env, i, slots);
+            return -1;
+        }
+    }
+    return 0;
+}
+
 JSValue QJ_NewJavaMethod(
     JSContext *ctx,
     JNIEnv *env,
@@ -428,31 +491,38 @@ JSValue QJ_NewJavaMethod(
 
     JSRuntime *rt = JS_GetRuntime(ctx);
     JavaMethodData *data = NULL;
-    jobject *arg_types_copy = NULL;
+    jint *arg_types_copy = NULL;
 
     data = js_malloc_rt(rt, sizeof(JavaMethodData));
     if (data == NULL) goto oom;
     if (arg_count > 0) {
-        arg_types_copy = js_malloc_rt(rt, sizeof(jobject) * arg_count);
+        arg_types_copy = js_malloc_rt(rt, sizeof(jint) * arg_count);
         if (arg_types_copy == NULL) goto oom;
     }
 
+    jobject objects[] = { js_context, callee, return_type };
+    jint slots[3];
+    if (register_objects(env, 3, objects, slots)) goto register_fail;
+    if (register_objects(env, arg_count, arg_types, arg_types_copy)) {
+        unregister_objects(env, 3, slots);
+        goto register_fail;
+    }
+
     JSValue value = JS_NewObjectClass(ctx, java_method_class_id);
     if (JS_IsException(value)) {
+        unregister_objects(env, 3, slots);
+        unregister_objects(env, arg_count, arg_types_copy);
         js_free_rt(rt, data);
         js_free_rt(rt, arg_types_copy);
         return value;
     }
 
-    for (int i = 0; i < arg_count; i++) {
-        arg_types_copy[i] = (*env)->NewGlobalRef(env, arg_types[i]);
-    }
-
     (*env)->GetJavaVM(env, &data->vm);
-    data->js_context = (*env)->NewGlobalRef(env, js_context);
-    data->callee = (*env)->NewGlobalRef(env, callee);
+    data->ctx = JS_DupContext(ctx);
+    data->js_context = slots[0];
+    data->callee = slots[1];
     data->method = method;
-    data->return_type = (*env)->NewGlobalRef(env, return_type);
+    data->return_type = slots[2];
     data->arg_count = arg_count;
     data->arg_types = arg_types_copy;
     data->caller = caller;
@@ -466,4 +536,10 @@ oom:
     js_free_rt(rt, data);
     js_free_rt(rt, arg_types_copy);
     return JS_ThrowOutOfMemory(ctx);
+
+register_fail:
+    (*env)->ExceptionClear(env);
+    js_free_rt(rt, data);
+    js_free_rt(rt, arg_types_copy);
+    return JS_ThrowInternalError(ctx, "Failed to register java object");
 }
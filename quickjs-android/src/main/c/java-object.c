@@ -1,11 +1,13 @@
 #include "java-object.h"
 #include "java-helper.h"
+#include "java-registry.h"
 
 static JSClassID java_object_class_id;
 
 typedef struct {
     JavaVM *vm;
-    jobject object;
+    // The slot of the object in ObjectRegistry
+    jint object;
 } JavaObjectData;
 
 static void java_object_finalizer(JSRuntime *rt, JSValue val) {
@@ -14,7 +16,7 @@ static void java_object_finalizer(JSRuntime *rt, JSValue val) {
     OBTAIN_ENV(data->vm);
 
     if (env != NULL) {
-        (*env)->DeleteGlobalRef(env, data->object);
+        QJ_UnregisterObject(env, data->object);
     }
 
     RELEASE_ENV(data->vm);
@@ -29,6 +31,8 @@ static JSClassDef java_object_class = {
 
 int java_object_init_context(JSContext *ctx) {
     JS_NewClassID(&java_object_class_id);
+    // Classes are shared by all contexts of the runtime
+    if (JS_IsRegisteredClass(JS_GetRuntime(ctx), java_object_class_id)) return 0;
     if (JS_NewClass(JS_GetRuntime(ctx), java_object_class_id, &java_object_class)) return -1;
     return 0;
 }
@@ -39,21 +43,28 @@ JSValue QJ_NewJavaObject(JSContext *ctx, JNIEnv *env, jobject object) {
     JavaObjectData *data = js_malloc_rt(rt, sizeof(JavaObjectData));
     if (data == NULL) return JS_ThrowOutOfMemory(ctx);
 
+    jint slot = QJ_RegisterObject(env, object);
+    if (slot < 0) {
+        js_free_rt(rt, data);
+        return JS_ThrowInternalError(ctx, "Failed to register java object");
+    }
+
     JSValue value = JS_NewObjectClass(ctx, java_object_class_id);
     if (JS_IsException(value)) {
+        QJ_UnregisterObject(env, slot);
         js_free_rt(rt, data);
         return value;
     }
 
     (*env)->GetJavaVM(env, &data->vm);
-    data->object = (*env)->NewGlobalRef(env, object);
+    data->object = slot;
 
     JS_SetOpaque(value, data);
 
     return value;
 }
 
-jobject QJ_GetJavaObject(JSContext __unused *ctx, JSValueConst val) {
+jobject QJ_GetJavaObject(JSContext __unused *ctx, JNIEnv *env, JSValueConst val) {
     JavaObjectData *data = JS_GetOpaque(val, java_object_class_id);
-    return data != NULL ? data->object : NULL;
+    return data != NULL ? QJ_GetRegisteredObject(env, data->object) : NULL;
 }
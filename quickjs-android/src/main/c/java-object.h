@@ -8,6 +8,7 @@ int java_object_init_context(JSContext *ctx);
 
 JSValue QJ_NewJavaObject(JSContext *ctx, JNIEnv *env, jobject object);
 
-jobject QJ_GetJavaObject(JSContext *ctx, JSValueConst val);
+// Returns a local reference to the java object, or NULL if it's not a java object.
+jobject QJ_GetJavaObject(JSContext *ctx, JNIEnv *env, JSValueConst val);
 
 #endif //QUICKJS_ANDROID_JAVA_OBJECT_H
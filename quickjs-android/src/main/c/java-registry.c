@@ -0,0 +1,50 @@
+#include "java-registry.h"
+
+static jclass object_registry_class;
+static jfieldID slots_field;
+static jmethodID acquire_method;
+static jmethodID release_method;
+
+int java_registry_init(JNIEnv *env) {
+    object_registry_class = (*env)->FindClass(env, "com/verve/shiqi/quickjs/ObjectRegistry");
+    if (object_registry_class == NULL) return -1;
+    object_registry_class = (*env)->NewGlobalRef(env, object_registry_class);
+    if (object_registry_class == NULL) return -1;
+
+    slots_field = (*env)->GetStaticFieldID(env, object_registry_class, "slots", "[Ljava/lang/Object;");
+    if (slots_field == NULL) return -1;
+    acquire_method = (*env)->GetStaticMethodID(env, object_registry_class, "acquire", "(Ljava/lang/Object;)I");
+    if (acquire_method == NULL) return -1;
+    release_method = (*env)->GetStaticMethodID(env, object_registry_class, "release", "(I)V");
+    if (release_method == NULL) return -1;
+
+    return 0;
+}
+
+jint QJ_RegisterObject(JNIEnv *env, jobject object) {
+    jint slot = (*env)->CallStaticIntMethod(env, object_registry_class, acquire_method, object);
+    if ((*env)->ExceptionCheck(env)) return -1;
+    return slot;
+}
+
+void QJ_UnregisterObject(JNIEnv *env, jint slot) {
+    // Finalizers may run while a java exception is pending, keep it aside
+    jthrowable pending = (*env)->ExceptionOccurred(env);
+    if (pending != NULL) (*env)->ExceptionClear(env);
+
+    (*env)->CallStaticVoidMethod(env, object_registry_class, release_method, slot);
+    if ((*env)->ExceptionCheck(env)) (*env)->ExceptionClear(env);
+
+    if (pending != NULL) {
+        (*env)->Throw(env, pending);
+        (*env)->DeleteLocalRef(env, pending);
+    }
+}
+
+jobject QJ_GetRegisteredObject(JNIEnv *env, jint slot) {
+    // The slot array is volatile, it's safe to read without the registry lock
+    jobjectArray slots = (*env)->GetStaticObjectField(env, object_registry_class, slots_field);
+    jobject object = (*env)->GetObjectArrayElement(env, slots, slot);
+    (*env)->DeleteLocalRef(env, slots);
+    return object;
+}
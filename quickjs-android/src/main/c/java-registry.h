@@ -0,0 +1,21 @@
+#ifndef QUICKJS_ANDROID_JAVA_REGISTRY_H
+#define QUICKJS_ANDROID_JAVA_REGISTRY_H
+
+#include <jni.h>
+
+// Java objects held by native code live in slots of ObjectRegistry,
+// so only the registry class takes a JNI global reference.
+
+int java_registry_init(JNIEnv *env);
+
+// Returns the slot of the object, the same object shares one slot.
+// Returns -1 with a pending java exception if it fails.
+jint QJ_RegisterObject(JNIEnv *env, jobject object);
+
+// Drops a reference to the slot. A pending java exception is kept.
+void QJ_UnregisterObject(JNIEnv *env, jint slot);
+
+// Returns a local reference to the object in the slot.
+jobject QJ_GetRegisteredObject(JNIEnv *env, jint slot);
+
+#endif //QUICKJS_ANDROID_JAVA_REGISTRY_H
@@ -0,0 +1,138 @@
+#include "java-value.h"
+#include "java-helper.h"
+
+static jclass js_float64_class;
+static jfieldID js_value_pointer_field;
+static jfieldID js_float64_value_field;
+
+// JSValue handles are carved from per-context slabs instead of one malloc each.
+// Freed boxes are chained in a free list, untouched boxes of the newest slab are bumped.
+#define VALUE_SLAB_SIZE 256
+
+typedef union ValueBox {
+    JSValue value;
+    union ValueBox *next_free;
+} ValueBox;
+
+typedef struct ValueSlab {
+    struct ValueSlab *next;
+    ValueBox boxes[VALUE_SLAB_SIZE];
+} ValueSlab;
+
+typedef struct ValueAllocator {
+    // The newest slab first
+    ValueSlab *slabs;
+    // Index of the next untouched box in the newest slab
+    size_t bump;
+    ValueBox *free_list;
+    size_t slab_count;
+    size_t used;
+} ValueAllocator;
+
+int java_value_init(JNIEnv *env) {
+    jclass js_value_class = (*env)->FindClass(env, "com/verve/shiqi/quickjs/JSValue");
+    if (js_value_class == NULL) return -1;
+    js_value_pointer_field = (*env)->GetFieldID(env, js_value_class, "pointer", "J");
+    if (js_value_pointer_field == NULL) return -1;
+
+    js_float64_class = (*env)->FindClass(env, "com/verve/shiqi/quickjs/JSFloat64");
+    js_float64_class = (*env)->NewGlobalRef(env, js_float64_class);
+    if (js_float64_class == NULL) return -1;
+    js_float64_value_field = (*env)->GetFieldID(env, js_float64_class, "value", "D");
+    if (js_float64_value_field == NULL) return -1;
+
+    return 0;
+}
+
+int java_value_init_context(JSContext *ctx) {
+    ValueAllocator *allocator = js_mallocz_rt(JS_GetRuntime(ctx), sizeof(ValueAllocator));
+    if (allocator == NULL) return -1;
+    // The newest slab counts as full until the first one is allocated
+    allocator->bump = VALUE_SLAB_SIZE;
+    JS_SetContextOpaque(ctx, allocator);
+    return 0;
+}
+
+void java_value_free_context(JSContext *ctx) {
+    JSRuntime *rt = JS_GetRuntime(ctx);
+    ValueAllocator *allocator = JS_GetContextOpaque(ctx);
+    if (allocator == NULL) return;
+
+    ValueSlab *slab = allocator->slabs;
+    while (slab != NULL) {
+        ValueSlab *next = slab->next;
+        js_free_rt(rt, slab);
+        slab = next;
+    }
+    js_free_rt(rt, allocator);
+    JS_SetContextOpaque(ctx, NULL);
+}
+
+JSValue *QJ_AllocHandle(JSContext *ctx) {
+    ValueAllocator *allocator = JS_GetContextOpaque(ctx);
+
+    ValueBox *box = allocator->free_list;
+    if (box != NULL) {
+        allocator->free_list = box->next_free;
+    } else {
+        if (allocator->bump == VALUE_SLAB_SIZE) {
+            ValueSlab *slab = js_malloc_rt(JS_GetRuntime(ctx), sizeof(ValueSlab));
+            if (slab == NULL) return NULL;
+            slab->next = allocator->slabs;
+            allocator->slabs = slab;
+            allocator->bump = 0;
+            allocator->slab_count++;
+        }
+        box = &allocator->slabs->boxes[allocator->bump++];
+    }
+
+    allocator->used++;
+    return &box->value;
+}
+
+void QJ_GetHandleStats(JSContext *ctx, QJHandleStats *stats) {
+    ValueAllocator *allocator = JS_GetContextOpaque(ctx);
+    stats->slab_count = allocator->slab_count;
+    stats->capacity = allocator->slab_count * VALUE_SLAB_SIZE;
+    stats->used = allocator->used;
+    stats->size = allocator->slab_count * sizeof(ValueSlab);
+}
+
+JSValue QJ_GetHandleValue(jlong handle) {
+    if (IS_IMMEDIATE_HANDLE(handle)) {
+        return JS_MKVAL(IMMEDIATE_HANDLE_TAG(handle), IMMEDIATE_HANDLE_PAYLOAD(handle));
+    }
+    return *((JSValue *) (intptr_t) handle);
+}
+
+void QJ_FreeHandle(JSContext *ctx, jlong handle) {
+    if (IS_IMMEDIATE_HANDLE(handle)) return;
+    ValueBox *box = (ValueBox *) (intptr_t) handle;
+    JS_FreeValue(ctx, box->value);
+
+    ValueAllocator *allocator = JS_GetContextOpaque(ctx);
+    box->next_free = allocator->free_list;
+    allocator->free_list = box;
+    allocator->used--;
+}
+
+int QJ_GetJavaValue(JNIEnv *env, jobject java_value, JSValue *result) {
+    if (java_value == NULL) {
+        throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, "Null JSValue");
+        return -1;
+    }
+
+    jlong handle = (*env)->GetLongField(env, java_value, js_value_pointer_field);
+    if (handle != 0) {
+        *result = QJ_GetHandleValue(handle);
+        return 0;
+    }
+
+    // Only JSFloat64 lives without handle
+    if (!(*env)->IsInstanceOf(env, java_value, js_float64_class)) {
+        throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, "JSValue without handle");
+        return -1;
+    }
+    *result = JS_NewFloat64(NULL, (*env)->GetDoubleField(env, java_value, js_float64_value_field));
+    return 0;
+}
@@ -0,0 +1,75 @@
+#ifndef QUICKJS_ANDROID_JAVA_VALUE_H
+#define QUICKJS_ANDROID_JAVA_VALUE_H
+
+#include <jni.h>
+#include <string.h>
+#include <quickjs/quickjs.h>
+
+// A JSValue handed to java is either a pointer to a js_malloc_rt'd copy,
+// or an immediate handle for tags without reference count (except float64).
+// Pointers are always aligned, so the lowest bit tells them apart.
+// Immediate handle layout: bit 0 is set, bits 1-4 hold the tag, bits 32-63 hold the int payload.
+#define IS_IMMEDIATE_HANDLE(HANDLE) (((HANDLE) & 1) != 0)
+#define IMMEDIATE_HANDLE_TAG(HANDLE) ((int32_t) (((HANDLE) >> 1) & 0xf))
+#define IMMEDIATE_HANDLE_PAYLOAD(HANDLE) ((int32_t) ((HANDLE) >> 32))
+#define MAKE_IMMEDIATE_HANDLE(TAG, PAYLOAD) ((jlong) (((uint64_t) (uint32_t) (PAYLOAD) << 32) | ((uint64_t) ((TAG) & 0xf) << 1) | 1))
+
+static inline int js_value_is_immediate(JSValueConst value) {
+    int32_t tag = JS_VALUE_GET_NORM_TAG(value);
+    return !JS_VALUE_HAS_REF_COUNT(value) && tag != JS_TAG_FLOAT64;
+}
+
+// Stores the handle of the JSValue to RESULT, a jlong. RESULT is untouched if it runs out of memory.
+#define COPY_JS_VALUE(JS_CONTEXT, JS_VALUE, RESULT)                                        \
+    do {                                                                                   \
+        if (js_value_is_immediate(JS_VALUE)) {                                             \
+            (RESULT) = MAKE_IMMEDIATE_HANDLE(                                              \
+                JS_VALUE_GET_NORM_TAG(JS_VALUE), JS_VALUE_GET_INT(JS_VALUE));              \
+            break;                                                                         \
+        }                                                                                  \
+        JSValue *__copy__ = QJ_AllocHandle(JS_CONTEXT);                                    \
+        if (__copy__ != NULL) {                                                            \
+            *__copy__ = (JS_VALUE);                                                        \
+            (RESULT) = (jlong) (intptr_t) __copy__;                                        \
+        } else {                                                                           \
+            JS_FreeValue((JS_CONTEXT), (JS_VALUE));                                        \
+        }                                                                                  \
+    } while (0)
+
+typedef struct QJHandleStats {
+    // Slabs allocated by the context
+    size_t slab_count;
+    // Boxes in all slabs
+    size_t capacity;
+    // Boxes holding a JSValue
+    size_t used;
+    // Bytes of all slabs
+    size_t size;
+} QJHandleStats;
+
+int java_value_init(JNIEnv *env);
+
+// Sets up the handle allocator of the context. Returns -1 if it runs out of memory.
+int java_value_init_context(JSContext *ctx);
+
+// Frees all slabs of the context. All handles must be freed before it.
+void java_value_free_context(JSContext *ctx);
+
+// Allocates a box for a JSValue handle from the slabs of the context.
+// Returns NULL if it runs out of memory.
+JSValue *QJ_AllocHandle(JSContext *ctx);
+
+void QJ_GetHandleStats(JSContext *ctx, QJHandleStats *stats);
+
+// Returns the JSValue behind the handle, without duplication.
+JSValue QJ_GetHandleValue(jlong handle);
+
+// Frees the JSValue and the handle itself.
+void QJ_FreeHandle(JSContext *ctx, jlong handle);
+
+// Reads the JSValue behind a java JSValue object, without duplication.
+// JSValues without native handle are rebuilt from their java fields.
+// Returns -1 with a pending java exception if it fails.
+int QJ_GetJavaValue(JNIEnv *env, jobject java_value, JSValue *result);
+
+#endif //QUICKJS_ANDROID_JAVA_VALUE_H
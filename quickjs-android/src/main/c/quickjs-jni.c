@@ -2,15 +2,21 @@
 #include <quickjs/quickjs.h>
 #include <string.h>
 #include <malloc.h>
+#include <time.h>
 
 #include "java-method.h"
 #include "java-object.h"
 #include "java-helper.h"
+#include "java-registry.h"
+#include "java-value.h"
 
 #define MSG_OOM "Out of memory"
 #define MSG_NULL_JS_RUNTIME "Null JSRuntime"
 #define MSG_NULL_JS_CONTEXT "Null JSContext"
 #define MSG_NULL_JS_VALUE "Null JSValue"
+#define MSG_NULL_CHECKPOINT "Null checkpoint"
+
+static void throw_js_evaluation_exception(JNIEnv *env, JSContext *ctx);
 
 #ifndef NODE_GYP
 #include <android/log.h>
@@ -23,25 +29,134 @@
 #endif
 
 static jmethodID on_interrupt_method;
+static jmethodID on_gc_method;
+static jclass double_class;
+static jmethodID double_value_of_method;
+static jclass boolean_class;
+static jmethodID boolean_value_of_method;
+static jclass hash_map_class;
+static jmethodID hash_map_constructor;
+static jmethodID hash_map_put_method;
+static jclass array_list_class;
+static jmethodID array_list_constructor;
+static jmethodID array_list_add_method;
 
 typedef struct InterruptData {
     JavaVM *vm;
     jobject interrupt_handler;
 } InterruptData;
 
+typedef struct GCListenerData {
+    JavaVM *vm;
+    jobject gc_listener;
+} GCListenerData;
+
 typedef struct QJRuntime {
     JSRuntime *rt;
     InterruptData *interrupt_date;
+    GCListenerData *gc_listener_data;
 } QJRuntime;
 
+// Encodes the java string as standard UTF-8 in one pass, surrogate pairs are joined
+// to 4-byte sequences instead of modified UTF-8 6-byte ones. The result is null-terminated
+// and must be freed.
+static char *java_string_to_utf8(JNIEnv *env, jstring str, size_t *plen) {
+    jsize length = (*env)->GetStringLength(env, str);
+    char *buf = malloc((size_t) length * 3 + 1);
+    if (buf == NULL) return NULL;
+
+    const jchar *chars = (*env)->GetStringCritical(env, str, NULL);
+    if (chars == NULL) {
+        free(buf);
+        return NULL;
+    }
+
+    uint8_t *q = (uint8_t *) buf;
+    for (jsize i = 0; i < length; i++) {
+        uint32_t c = chars[i];
+        if (c < 0x80) {
+            *q++ = c;
+            continue;
+        }
+        if (c >= 0xd800 && c < 0xdc00 && i + 1 < length &&
+            chars[i + 1] >= 0xdc00 && chars[i + 1] < 0xe000) {
+            c = 0x10000 + (((c - 0xd800) << 10) | (chars[++i] - 0xdc00));
+        }
+        if (c < 0x800) {
+            *q++ = 0xc0 | (c >> 6);
+        } else if (c < 0x10000) {
+            *q++ = 0xe0 | (c >> 12);
+            *q++ = 0x80 | ((c >> 6) & 0x3f);
+        } else {
+            *q++ = 0xf0 | (c >> 18);
+            *q++ = 0x80 | ((c >> 12) & 0x3f);
+            *q++ = 0x80 | ((c >> 6) & 0x3f);
+        }
+        *q++ = 0x80 | (c & 0x3f);
+    }
+    *q = '\0';
+
+    (*env)->ReleaseStringCritical(env, str, chars);
+
+    *plen = (char *) q - buf;
+    return buf;
+}
+
+// 8 bit strings shorter than it are widened on the stack
+#define LATIN1_STACK_BUFFER_LENGTH 512
+
+static jstring js_string_region_to_java_string(JNIEnv *env, JSValueConst val, uint32_t start, uint32_t end) {
+    uint32_t len;
+    int is_wide;
+    const void *buf = JS_GetStringBuffer(val, &len, &is_wide);
+    CHECK_NULL_RET(env, buf, "Not a string");
+    CHECK_FALSE_RET(env, start <= end && end <= len, "Invalid string region");
+
+    jstring j_str;
+    if (is_wide) {
+        // Same code units as java
+        j_str = (*env)->NewString(env, (const jchar *) buf + start, (jsize) (end - start));
+    } else {
+        // Latin-1, widen it
+        const uint8_t *str8 = (const uint8_t *) buf + start;
+        uint32_t length = end - start;
+        jchar stack_buffer[LATIN1_STACK_BUFFER_LENGTH];
+        jchar *chars = stack_buffer;
+        if (length > LATIN1_STACK_BUFFER_LENGTH) {
+            chars = malloc(length * sizeof(jchar));
+            CHECK_NULL_RET(env, chars, MSG_OOM);
+        }
+        for (uint32_t i = 0; i < length; i++) {
+            chars[i] = str8[i];
+        }
+        j_str = (*env)->NewString(env, chars, (jsize) length);
+        if (chars != stack_buffer) free(chars);
+    }
+
+    CHECK_NULL_RET(env, j_str, MSG_OOM);
+
+    return j_str;
+}
+
+static jstring js_string_to_java_string(JNIEnv *env, JSValueConst val) {
+    uint32_t len;
+    int is_wide;
+    CHECK_NULL_RET(env, JS_GetStringBuffer(val, &len, &is_wide), "Not a string");
+    return js_string_region_to_java_string(env, val, 0, len);
+}
+
 JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createRuntime(JNIEnv *env, jclass __unused clazz) {
+Java_com_verve_shiqi_quickjs_QuickJS_createRuntime(JNIEnv *env, jclass __unused clazz, jboolean private_heap) {
     QJRuntime *qj_rt = malloc(sizeof(QJRuntime));
     CHECK_NULL_RET(env, qj_rt, MSG_OOM);
-    JSRuntime *rt = JS_NewRuntime();
-    CHECK_NULL_RET(env, rt, MSG_OOM);
+    JSRuntime *rt = private_heap ? JS_NewRuntimeWithPrivateHeap() : JS_NewRuntime();
+    if (rt == NULL) {
+        free(qj_rt);
+        THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
+    }
     qj_rt->rt = rt;
     qj_rt->interrupt_date = NULL;
+    qj_rt->gc_listener_data = NULL;
     return (jlong) qj_rt;
 }
 
@@ -57,6 +172,42 @@ Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeMallocLimit(
     JS_SetMemoryLimit(qj_rt->rt, (size_t) malloc_limit);
 }
 
+// Fields of JSMemoryUsage in order, mirrored by JSMemoryUsage.java
+#define MEMORY_USAGE_SIZE 28
+
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getRuntimeMemoryUsage(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime,
+        jlongArray usage
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    CHECK_NULL(env, usage, "Null usage");
+    CHECK_FALSE(env, (*env)->GetArrayLength(env, usage) >= MEMORY_USAGE_SIZE, "Invalid usage");
+
+    JSMemoryUsage s;
+    JS_ComputeMemoryUsage(qj_rt->rt, &s);
+    jlong values[MEMORY_USAGE_SIZE] = {
+        s.malloc_size, s.malloc_limit, s.memory_used_size,
+        s.malloc_count,
+        s.memory_used_count,
+        s.atom_count, s.atom_size,
+        s.str_count, s.str_size,
+        s.obj_count, s.obj_size,
+        s.prop_count, s.prop_size,
+        s.shape_count, s.shape_size,
+        s.js_func_count, s.js_func_size, s.js_func_code_size,
+        s.js_func_pc2line_count, s.js_func_pc2line_size,
+        s.js_func_pc2column_count, s.js_func_pc2column_size,
+        s.c_func_count, s.array_count,
+        s.fast_array_count, s.fast_array_elements,
+        s.binary_object_count, s.binary_object_size
+    };
+    (*env)->SetLongArrayRegion(env, usage, 0, MEMORY_USAGE_SIZE, values);
+}
+
 JNIEXPORT void JNICALL
 Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeMaxStackSize(
         JNIEnv *env,
@@ -69,6 +220,18 @@ Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeMaxStackSize(
     JS_SetMaxStackSize(qj_rt->rt, (size_t) stack_size);
 }
 
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_updateRuntimeStackTop(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    // The stack limit is measured from the stack of the calling thread
+    JS_UpdateStackTop(qj_rt->rt);
+}
+
 static int on_interrupt(JSRuntime __unused *rt, void *opaque) {
     int result = 0;
 
@@ -129,6 +292,112 @@ Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeInterruptHandler(
     }
 }
 
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeGCThreshold(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime,
+        jlong gc_threshold
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    JS_SetGCThreshold(qj_rt->rt, (size_t) gc_threshold);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getRuntimeGCThreshold(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL_RET(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    size_t gc_threshold = JS_GetGCThreshold(qj_rt->rt);
+    return gc_threshold == (size_t) -1 ? -1 : (jlong) gc_threshold;
+}
+
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_runRuntimeGC(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    JS_RunGC(qj_rt->rt);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_trimRuntimeMemory(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong runtime,
+        jint level
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL_RET(env, qj_rt, MSG_NULL_JS_RUNTIME);
+    return JS_TrimMemory(qj_rt->rt, level);
+}
+
+static void on_gc(JSRuntime __unused *rt, const JSGCStats *stats, void *opaque) {
+    GCListenerData *data = opaque;
+
+    OBTAIN_ENV(data->vm);
+
+    // GC might run while a java exception is pending, e.g. in JS_FreeValue after a failed java call
+    if (env != NULL && !(*env)->ExceptionCheck(env)) {
+        (*env)->CallVoidMethod(env, data->gc_listener, on_gc_method,
+                (jlong) stats->malloc_size_before, (jlong) stats->malloc_size_after,
+                (jlong) stats->objects_freed, (jlong) stats->duration_ns);
+        if ((*env)->ExceptionCheck(env)) {
+            (*env)->ExceptionDescribe(env);
+            (*env)->ExceptionClear(env);
+        }
+    }
+
+    RELEASE_ENV(data->vm);
+}
+
+static void clear_gc_listener(JNIEnv *env, QJRuntime *qj_rt) {
+    GCListenerData *data = qj_rt->gc_listener_data;
+    if (data != NULL) {
+        JS_SetGCHook(qj_rt->rt, NULL, NULL);
+        (*env)->DeleteGlobalRef(env, data->gc_listener);
+        free(data);
+        qj_rt->gc_listener_data = NULL;
+    }
+}
+
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setRuntimeGCListener(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong runtime,
+    jobject gc_listener
+) {
+    QJRuntime *qj_rt = (QJRuntime *) runtime;
+    CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
+
+    if (gc_listener == NULL) {
+        clear_gc_listener(env, qj_rt);
+        return;
+    }
+
+    GCListenerData *data = qj_rt->gc_listener_data;
+    if (data == NULL) {
+        data = malloc(sizeof(GCListenerData));
+        CHECK_NULL(env, data, MSG_OOM);
+    } else {
+        (*env)->DeleteGlobalRef(env, data->gc_listener);
+    }
+
+    (*env)->GetJavaVM(env, &(data->vm));
+    data->gc_listener = (*env)->NewGlobalRef(env, gc_listener);
+
+    qj_rt->gc_listener_data = data;
+    JS_SetGCHook(qj_rt->rt, on_gc, data);
+}
+
 #ifdef LEAK_TRIGGER
 
 static int leak_state = 0;
@@ -152,6 +421,8 @@ Java_com_verve_shiqi_quickjs_QuickJS_destroyRuntime(
     QJRuntime *qj_rt = (QJRuntime *) runtime;
     CHECK_NULL(env, qj_rt, MSG_NULL_JS_RUNTIME);
     JSRuntime *rt = qj_rt->rt;
+    // No GC events while tearing down
+    clear_gc_listener(env, qj_rt);
 #ifdef LEAK_TRIGGER
     leak_state = 0;
 #endif
@@ -184,6 +455,7 @@ Java_com_verve_shiqi_quickjs_QuickJS_createContext(
 
     if (java_method_init_context(ctx)) THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
     if (java_object_init_context(ctx)) THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
+    if (java_value_init_context(ctx)) THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
 
     return (jlong) ctx;
 }
@@ -196,106 +468,71 @@ Java_com_verve_shiqi_quickjs_QuickJS_destroyContext(
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
+    // All handles are released by java before it
+    java_value_free_context(ctx);
     JS_FreeContext(ctx);
 }
 
-#define COPY_JS_VALUE(JS_CONTEXT, JS_VALUE, RESULT)                                    \
-    do {                                                                               \
-        void *__copy__ = js_malloc_rt(JS_GetRuntime(JS_CONTEXT), sizeof(JSValue));     \
-        if (__copy__ != NULL) {                                                        \
-            memcpy(__copy__, &(JS_VALUE), sizeof(JSValue));                            \
-            (RESULT) = __copy__;                                                       \
-        } else {                                                                       \
-            JS_FreeValue((JS_CONTEXT), (JS_VALUE));                                    \
-        }                                                                              \
-    } while (0)
-
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createValueUndefined(
-    JNIEnv *env,
-    jclass __unused clazz,
-    jlong context
-) {
-    JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-
-    JSValue *result = 0;
-    JSValue val = JS_UNDEFINED;
-    COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
-
-    return (jlong) result;
-}
-
 JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createValueNull(
+Java_com_verve_shiqi_quickjs_QuickJS_createContextCheckpoint(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-
-    JSValue *result = NULL;
-    JSValue val = JS_NULL;
-    COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
-
-    return (jlong) result;
+    return (jlong) JS_NewContextCheckpoint(ctx);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createValueBoolean(
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_restoreContextCheckpoint(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jboolean value
+    jlong checkpoint
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-
-    JSValue *result = NULL;
-    JSValue val = JS_NewBool(ctx, value);
-    COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
-
-    return (jlong) result;
+    JSContextCheckpoint *cp = (JSContextCheckpoint *) checkpoint;
+    CHECK_NULL_RET(env, cp, MSG_NULL_CHECKPOINT);
+    return (jboolean) (JS_RestoreContextCheckpoint(ctx, cp) == 0);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createValueInt(
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_destroyContextCheckpoint(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jint value
+    jlong checkpoint
 ) {
     JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-
-    JSValue *result = NULL;
-    JSValue val = JS_NewInt32(ctx, value);
-    COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
-
-    return (jlong) result;
+    CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
+    JSContextCheckpoint *cp = (JSContextCheckpoint *) checkpoint;
+    CHECK_NULL(env, cp, MSG_NULL_CHECKPOINT);
+    JS_FreeContextCheckpoint(ctx, cp);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_createValueFloat64(
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getHandleStats(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jdouble value
+    jlongArray stats
 ) {
     JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-
-    JSValue *result = NULL;
-    JSValue val = JS_NewFloat64(ctx, value);
-    COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
-
-    return (jlong) result;
+    CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL(env, stats, "Null stats");
+    CHECK_FALSE(env, (*env)->GetArrayLength(env, stats) >= 4, "Invalid stats");
+
+    QJHandleStats handle_stats;
+    QJ_GetHandleStats(ctx, &handle_stats);
+    jlong values[4] = {
+        (jlong) handle_stats.slab_count,
+        (jlong) handle_stats.capacity,
+        (jlong) handle_stats.used,
+        (jlong) handle_stats.size
+    };
+    (*env)->SetLongArrayRegion(env, stats, 0, 4, values);
 }
 
 JNIEXPORT jlong JNICALL
@@ -309,18 +546,19 @@ Java_com_verve_shiqi_quickjs_QuickJS_createValueString(
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
     CHECK_NULL_RET(env, value, "Null value");
 
-    const char *value_utf = (*env)->GetStringUTFChars(env, value, NULL);
-    CHECK_NULL_RET(env, value_utf, MSG_OOM);
+    // Copy UTF-16 code units directly, no modified UTF-8 round trip
+    jsize length = (*env)->GetStringLength(env, value);
+    const jchar *chars = (*env)->GetStringCritical(env, value, NULL);
+    CHECK_NULL_RET(env, chars, MSG_OOM);
+    JSValue val = JS_NewStringUTF16(ctx, chars, (size_t) length);
+    (*env)->ReleaseStringCritical(env, value, chars);
 
-    JSValue *result = NULL;
-    JSValue val = JS_NewString(ctx, value_utf);
+    jlong result = 0;
     COPY_JS_VALUE(ctx, val, result);
 
-    (*env)->ReleaseStringUTFChars(env, value, value_utf);
-
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 JNIEXPORT jlong JNICALL
@@ -332,12 +570,12 @@ Java_com_verve_shiqi_quickjs_QuickJS_createValueObject(
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
 
-    JSValue *result = NULL;
+    jlong result = 0;
     JSValue val = JS_NewObject(ctx);
     COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 JNIEXPORT jlong JNICALL
@@ -349,12 +587,12 @@ Java_com_verve_shiqi_quickjs_QuickJS_createValueArray(
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
 
-    JSValue *result = NULL;
+    jlong result = 0;
     JSValue val = JS_NewArray(ctx);
     COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 #define CREATE_VALUE_ARRAY_BUFFER_METHOD(METHOD_NAME, JNI_ARRAY_TYPE, JNI_TYPE, COPY)     \
@@ -380,13 +618,13 @@ METHOD_NAME(
         return 0;                                                                         \
     }                                                                                     \
                                                                                           \
-    JSValue *result = NULL;                                                               \
+    jlong result = 0;                                                                     \
     JSValue val = JS_NewArrayBufferCopy(ctx, buffer, buffer_length);                      \
     COPY_JS_VALUE(ctx, val, result);                                                      \
     free(buffer);                                                                         \
-    CHECK_NULL_RET(env, result, MSG_OOM);                                                 \
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);                                           \
                                                                                           \
-    return (jlong) result;                                                                \
+    return result;                                                                        \
 }
 
 CREATE_VALUE_ARRAY_BUFFER_METHOD(
@@ -488,12 +726,12 @@ static jlong createValueFunction(
         arg_types_copy[i] = (*env)->GetObjectArrayElement(env, arg_types, i);
     }
 
-    JSValue *result = NULL;
+    jlong result = 0;
     JSValue val = QJ_NewJavaMethod(ctx, env, js_context, is_static, callee, method, return_type, arg_count, arg_types_copy, is_callback_method);
     COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 JNIEXPORT jlong JNICALL
@@ -545,12 +783,12 @@ Java_com_verve_shiqi_quickjs_QuickJS_createValueJavaObject(
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
 
-    JSValue *result = NULL;
+    jlong result = 0;
     JSValue val = QJ_NewJavaObject(ctx, env, object);
     COPY_JS_VALUE(ctx, val, result);
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 JNIEXPORT jlongArray JNICALL
@@ -568,82 +806,79 @@ Java_com_verve_shiqi_quickjs_QuickJS_createValuePromise(
     JSValue functions[2] = { JS_UNDEFINED, JS_UNDEFINED };
     JSValue promise = JS_NewPromiseCapability(ctx, functions);
 
-    JSValue *promise_result = NULL;
-    JSValue *function1_result = NULL;
-    JSValue *function2_result = NULL;
+    jlong promise_result = 0;
+    jlong function1_result = 0;
+    jlong function2_result = 0;
     COPY_JS_VALUE(ctx, promise, promise_result);
-    if (promise_result == NULL) {
+    if (promise_result == 0) {
         JS_FreeValue(ctx, functions[0]);
         JS_FreeValue(ctx, functions[1]);
         THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
     }
     COPY_JS_VALUE(ctx, functions[0], function1_result);
-    if (function1_result == NULL) {
-        JS_FreeValue(ctx, *promise_result);
-        js_free_rt(JS_GetRuntime(ctx), promise_result);
+    if (function1_result == 0) {
+        QJ_FreeHandle(ctx, promise_result);
         JS_FreeValue(ctx, functions[1]);
         THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
     }
     COPY_JS_VALUE(ctx, functions[1], function2_result);
-    if (function2_result == NULL) {
-        JS_FreeValue(ctx, *promise_result);
-        js_free_rt(JS_GetRuntime(ctx), promise_result);
-        JS_FreeValue(ctx, *function1_result);
-        js_free_rt(JS_GetRuntime(ctx), function1_result);
+    if (function2_result == 0) {
+        QJ_FreeHandle(ctx, promise_result);
+        QJ_FreeHandle(ctx, function1_result);
         THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
     }
 
-    (*env)->SetLongArrayRegion(env, result, 0, 1, (const jlong *) &promise_result);
-    (*env)->SetLongArrayRegion(env, result, 1, 1, (const jlong *) &function1_result);
-    (*env)->SetLongArrayRegion(env, result, 2, 1, (const jlong *) &function2_result);
+    (*env)->SetLongArrayRegion(env, result, 0, 1, &promise_result);
+    (*env)->SetLongArrayRegion(env, result, 1, 1, &function1_result);
+    (*env)->SetLongArrayRegion(env, result, 2, 1, &function2_result);
     return result;
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_defineValueProperty__JJIJI(
+Java_com_verve_shiqi_quickjs_QuickJS_defineValueProperty__JJILcom_verve_shiqi_quickjs_JSValue_2I(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
     jlong value,
     jint index,
-    jlong property,
+    jobject property,
     jint flags
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    JSValue *prop = (JSValue *) property;
-    CHECK_NULL_RET(env, prop, "Null property");
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
 
-    JS_DupValue(ctx, *prop);
+    JS_DupValue(ctx, prop);
 
-    return (jboolean) (JS_DefinePropertyValueUint32(ctx, *val, (uint32_t) index, *prop, flags) >= 0);
+    return (jboolean) (JS_DefinePropertyValueUint32(ctx, val, (uint32_t) index, prop, flags) >= 0);
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_defineValueProperty__JJLjava_lang_String_2JI(
+Java_com_verve_shiqi_quickjs_QuickJS_defineValueProperty__JJLjava_lang_String_2Lcom_verve_shiqi_quickjs_JSValue_2I(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
     jlong value,
     jstring name,
-    jlong property,
+    jobject property,
     jint flags
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    JSValue *prop = (JSValue *) property;
-    CHECK_NULL_RET(env, prop, "Null property");
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
 
     const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
     CHECK_NULL_RET(env, name_utf, MSG_OOM);
 
-    JS_DupValue(ctx, *prop);
+    JS_DupValue(ctx, prop);
 
-    jboolean result = (jboolean) (JS_DefinePropertyValueStr(ctx, *val, name_utf, *prop, flags) >= 0);
+    jboolean result = (jboolean) (JS_DefinePropertyValueStr(ctx, val, name_utf, prop, flags) >= 0);
 
     (*env)->ReleaseStringUTFChars(env, name, name_utf);
 
@@ -651,203 +886,805 @@ Java_com_verve_shiqi_quickjs_QuickJS_defineValueProperty__JJLjava_lang_String_2J
 }
 
 JNIEXPORT jint JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueTag(
-    JNIEnv *env,
-    jclass __unused clazz,
-    jlong value
-) {
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    return JS_VALUE_GET_NORM_TAG(*val);
-}
-
-JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_isValueArray(
+Java_com_verve_shiqi_quickjs_QuickJS_createAtom(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jlong value
+    jstring name
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    return (jboolean) JS_IsArray(ctx, *val);
-}
+    CHECK_NULL_RET(env, name, "Null name");
 
-JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_isValueArrayBuffer(
-        JNIEnv *env,
-        jclass __unused clazz,
-        jlong context,
-        jlong value
-) {
-    JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    return (jboolean) JS_IsArrayBuffer(ctx, *val);
+    size_t name_length = 0;
+    char *name_utf = java_string_to_utf8(env, name, &name_length);
+    CHECK_NULL_RET(env, name_utf, MSG_OOM);
+
+    JSAtom atom = JS_NewAtomLen(ctx, name_utf, name_length);
+
+    free(name_utf);
+
+    CHECK_FALSE_RET(env, atom != JS_ATOM_NULL, MSG_OOM);
+
+    return (jint) atom;
 }
 
-JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_isValueFunction(
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_destroyAtom(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jlong value
+    jint atom
 ) {
     JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    return (jboolean) JS_IsFunction(ctx, *val);
+    CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
+    JS_FreeAtom(ctx, (JSAtom) atom);
 }
 
 JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunction(
+Java_com_verve_shiqi_quickjs_QuickJS_getValuePropertyAtom(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jlong function,
-    jlong thisObj,
-    jlongArray args
+    jlong value,
+    jint atom
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *func_obj = (JSValue *) function;
-    CHECK_NULL_RET(env, func_obj, "Null function");
-    JSValue *this_obj = (JSValue *) thisObj;
-    CHECK_NULL_RET(env, args, "Null arguments");
-    jlong *elements = (*env)->GetLongArrayElements(env, args, NULL);
-    CHECK_NULL_RET(env, elements, MSG_OOM);
-
-    int argc = (*env)->GetArrayLength(env, args);
-    JSValueConst argv[argc];
-    for (int i = 0; i < argc; i++) {
-        argv[i] = *((JSValue *) elements[i]);
-    }
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
 
-    JSValue *result = NULL;
+    jlong result = 0;
 
-    JSValue ret = JS_Call(ctx, *func_obj, this_obj != NULL ? *this_obj : JS_UNDEFINED, argc, argv);
-
-    COPY_JS_VALUE(ctx, ret, result);
+    JSValue prop = JS_GetProperty(ctx, QJ_GetHandleValue(value), (JSAtom) atom);
 
-    (*env)->ReleaseLongArrayElements(env, args, elements, JNI_ABORT);
+    COPY_JS_VALUE(ctx, prop, result);
 
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueProperty__JJI(
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setValuePropertyAtom(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
     jlong value,
-    jint index
+    jint atom,
+    jobject property
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-
-    JSValue *result = NULL;
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
 
-    JSValue prop = JS_GetPropertyUint32(ctx, *val, (uint32_t) index);
-
-    COPY_JS_VALUE(ctx, prop, result);
-
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    // JS_SetProperty requires a reference count of the property JSValue
+    JS_DupValue(ctx, prop);
 
-    return (jlong) result;
+    return (jboolean) (JS_SetProperty(ctx, val, (JSAtom) atom, prop) >= 0);
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueProperty__JJLjava_lang_String_2(
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_defineValuePropertyAtom(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
     jlong value,
-    jstring name
+    jint atom,
+    jobject property,
+    jint flags
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    CHECK_NULL_RET(env, name, "Null name");
-
-    const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
-    CHECK_NULL_RET(env, name_utf, MSG_OOM);
-
-    JSValue *result = NULL;
-
-    JSValue prop = JS_GetPropertyStr(ctx, *val, name_utf);
-
-    COPY_JS_VALUE(ctx, prop, result);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
 
-    (*env)->ReleaseStringUTFChars(env, name, name_utf);
+    JS_DupValue(ctx, prop);
 
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    return (jboolean) (JS_DefinePropertyValue(ctx, val, (JSAtom) atom, prop, flags) >= 0);
+}
 
-    return (jlong) result;
+JNIEXPORT jint JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueTag(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong value
+) {
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    return JS_VALUE_GET_NORM_TAG(QJ_GetHandleValue(value));
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_setValueProperty__JJIJ(
+Java_com_verve_shiqi_quickjs_QuickJS_isValueArray(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jlong value,
-    jint index,
-    jlong property
+    jlong value
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    JSValue *prop = (JSValue *) property;
-    CHECK_NULL_RET(env, prop, "Null property");
-
-    // JS_SetPropertyUint32 requires a reference count of the property JSValue
-    // Meanwhile, it calls JS_FreeValue on the property JSValue if it fails
-    JS_DupValue(ctx, *prop);
-
-    return (jboolean) (JS_SetPropertyUint32(ctx, *val, (uint32_t) index, *prop) >= 0);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    return (jboolean) JS_IsArray(ctx, QJ_GetHandleValue(value));
 }
 
 JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_setValueProperty__JJLjava_lang_String_2J(
-    JNIEnv *env,
-    jclass __unused clazz,
+Java_com_verve_shiqi_quickjs_QuickJS_isValueArrayBuffer(
+        JNIEnv *env,
+        jclass __unused clazz,
+        jlong context,
+        jlong value
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    return (jboolean) JS_IsArrayBuffer(ctx, QJ_GetHandleValue(value));
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_isValueFunction(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    return (jboolean) JS_IsFunction(ctx, QJ_GetHandleValue(value));
+}
+
+// Keep them the same as JSContext.KIND_*
+#define VALUE_KIND_PLAIN 0
+#define VALUE_KIND_FUNCTION 1
+#define VALUE_KIND_ARRAY 2
+#define VALUE_KIND_ARRAY_BUFFER 3
+#define VALUE_KIND_JAVA_OBJECT 4
+
+// Keep it the same as JSContext.DESCRIPTION_SIZE
+#define DESCRIPTION_SIZE 3
+
+// Writes tag, kind and string length to desc, or tag and the high and low
+// bits of a float64. Returns the payload: the java object of a java object.
+// Returns NULL with a pending java exception if it fails.
+static jobject describe_value(JNIEnv *env, JSContext *ctx, JSValueConst val, jint *desc) {
+    desc[0] = JS_VALUE_GET_NORM_TAG(val);
+    desc[1] = VALUE_KIND_PLAIN;
+    desc[2] = 0;
+    jobject payload = NULL;
+
+    switch (desc[0]) {
+        case JS_TAG_STRING:
+        {
+            // Only the length, contents are fetched lazily
+            uint32_t len;
+            int is_wide;
+            JS_GetStringBuffer(val, &len, &is_wide);
+            desc[2] = (jint) len;
+            break;
+        }
+        case JS_TAG_FLOAT64:
+        {
+            // No boxing, it's rebuilt from its bits
+            union { double d; uint64_t u; } bits = { .d = JS_VALUE_GET_FLOAT64(val) };
+            desc[1] = (jint) (bits.u >> 32);
+            desc[2] = (jint) bits.u;
+            break;
+        }
+        case JS_TAG_OBJECT:
+            if (JS_IsFunction(ctx, val)) {
+                desc[1] = VALUE_KIND_FUNCTION;
+            } else if (JS_IsArray(ctx, val)) {
+                desc[1] = VALUE_KIND_ARRAY;
+            } else if (JS_IsArrayBuffer(ctx, val)) {
+                desc[1] = VALUE_KIND_ARRAY_BUFFER;
+            } else {
+                payload = QJ_GetJavaObject(ctx, env, val);
+                if (payload != NULL) desc[1] = VALUE_KIND_JAVA_OBJECT;
+            }
+            break;
+        default:
+            break;
+    }
+
+    return payload;
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_describeValue(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jintArray description
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    CHECK_NULL_RET(env, description, "Null description");
+
+    jint desc[DESCRIPTION_SIZE];
+    jobject payload = describe_value(env, ctx, QJ_GetHandleValue(value), desc);
+    if ((*env)->ExceptionCheck(env)) return NULL;
+
+    if (desc[0] == JS_TAG_FLOAT64) {
+        // Rebuilt from the description, no handle is kept for it
+        QJ_FreeHandle(ctx, value);
+    }
+
+    (*env)->SetIntArrayRegion(env, description, 0, DESCRIPTION_SIZE, desc);
+
+    return payload;
+}
+
+// Calls the function, stores the result to ret. this_obj is NULL for undefined.
+// Returns -1 with a pending java exception if this_obj is invalid.
+static int call_function_value(
+    JNIEnv *env,
+    JSContext *ctx,
+    jlong function,
+    jobject this_obj,
+    int argc,
+    JSValueConst *argv,
+    JSValue *ret
+) {
+    JSValue func_obj = QJ_GetHandleValue(function);
+    JSValue this_val = JS_UNDEFINED;
+    if (this_obj != NULL && QJ_GetJavaValue(env, this_obj, &this_val)) return -1;
+
+    *ret = JS_Call(ctx, func_obj, this_val, argc, argv);
+    return 0;
+}
+
+// Calls the function, returns the handle of the result.
+static jlong call_function(
+    JNIEnv *env,
+    JSContext *ctx,
+    jlong function,
+    jobject this_obj,
+    int argc,
+    JSValueConst *argv
+) {
+    JSValue ret;
+    if (call_function_value(env, ctx, function, this_obj, argc, argv, &ret)) return 0;
+
+    jlong result = 0;
+
+    COPY_JS_VALUE(ctx, ret, result);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+// Reads the JSValues of the java array, without duplication.
+// Returns -1 with a pending java exception if it fails.
+static int get_java_values(JNIEnv *env, jobjectArray args, int argc, JSValueConst *argv) {
+    for (int i = 0; i < argc; i++) {
+        jobject arg = (*env)->GetObjectArrayElement(env, args, i);
+        int failed = QJ_GetJavaValue(env, arg, argv + i);
+        (*env)->DeleteLocalRef(env, arg);
+        if (failed) return -1;
+    }
+    return 0;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunction(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong function,
+    jobject thisObj,
+    jobjectArray args
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, function != 0, "Null function");
+    CHECK_NULL_RET(env, args, "Null arguments");
+
+    int argc = (*env)->GetArrayLength(env, args);
+    JSValueConst argv[argc];
+    if (get_java_values(env, args, argc, argv)) return 0;
+
+    return call_function(env, ctx, function, thisObj, argc, argv);
+}
+
+// Up to 4 arguments without an array
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionArgs(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong function,
+    jobject thisObj,
+    jint argc,
+    jobject arg0,
+    jobject arg1,
+    jobject arg2,
+    jobject arg3
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, function != 0, "Null function");
+    CHECK_FALSE_RET(env, argc >= 0 && argc <= 4, "Invalid argument count");
+
+    jobject args[4] = { arg0, arg1, arg2, arg3 };
+    JSValueConst argv[4];
+    for (int i = 0; i < argc; i++) {
+        if (QJ_GetJavaValue(env, args[i], argv + i)) return 0;
+    }
+
+    return call_function(env, ctx, function, thisObj, argc, argv);
+}
+
+// One or two arguments of the same primitive type, without JSValues
+#define INVOKE_VALUE_FUNCTION_PRIMITIVE_METHOD(METHOD_NAME, JNI_TYPE, NEW_VALUE)             \
+JNIEXPORT jlong JNICALL                                                                     \
+METHOD_NAME(                                                                                \
+    JNIEnv *env,                                                                            \
+    jclass __unused clazz,                                                                  \
+    jlong context,                                                                          \
+    jlong function,                                                                         \
+    jobject thisObj,                                                                        \
+    jint argc,                                                                              \
+    JNI_TYPE arg0,                                                                          \
+    JNI_TYPE arg1                                                                           \
+) {                                                                                         \
+    JSContext *ctx = (JSContext *) context;                                                 \
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);                                          \
+    CHECK_FALSE_RET(env, function != 0, "Null function");                                   \
+    CHECK_FALSE_RET(env, argc >= 1 && argc <= 2, "Invalid argument count");                 \
+                                                                                            \
+    JSValue argv[2] = { NEW_VALUE(arg0), NEW_VALUE(arg1) };                                 \
+    return call_function(env, ctx, function, thisObj, argc, argv);                          \
+}
+
+#define NEW_INT(arg) JS_NewInt32(ctx, arg)
+#define NEW_DOUBLE(arg) JS_NewFloat64(ctx, arg)
+#define NEW_BOOL(arg) JS_NewBool(ctx, arg)
+
+INVOKE_VALUE_FUNCTION_PRIMITIVE_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionInt,
+    jint,
+    NEW_INT
+)
+
+INVOKE_VALUE_FUNCTION_PRIMITIVE_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionDouble,
+    jdouble,
+    NEW_DOUBLE
+)
+
+INVOKE_VALUE_FUNCTION_PRIMITIVE_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionBoolean,
+    jboolean,
+    NEW_BOOL
+)
+
+#undef NEW_INT
+#undef NEW_DOUBLE
+#undef NEW_BOOL
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionString(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong function,
+    jobject thisObj,
+    jint argc,
+    jstring arg0,
+    jstring arg1
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, function != 0, "Null function");
+    CHECK_FALSE_RET(env, argc >= 1 && argc <= 2, "Invalid argument count");
+    CHECK_NULL_RET(env, arg0, "Null argument");
+    if (argc == 2) CHECK_NULL_RET(env, arg1, "Null argument");
+
+    jstring args[2] = { arg0, arg1 };
+    JSValue argv[2];
+    jlong result = 0;
+    for (int i = 0; i < argc; i++) {
+        jsize length = (*env)->GetStringLength(env, args[i]);
+        const jchar *chars = (*env)->GetStringCritical(env, args[i], NULL);
+        if (chars == NULL) {
+            for (int j = 0; j < i; j++) JS_FreeValue(ctx, argv[j]);
+            THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
+        }
+        argv[i] = JS_NewStringUTF16(ctx, chars, (size_t) length);
+        (*env)->ReleaseStringCritical(env, args[i], chars);
+        if (JS_IsException(argv[i])) {
+            for (int j = 0; j < i; j++) JS_FreeValue(ctx, argv[j]);
+            // It's an immediate handle, java side throws the pending exception
+            COPY_JS_VALUE(ctx, argv[i], result);
+            return result;
+        }
+    }
+
+    result = call_function(env, ctx, function, thisObj, argc, argv);
+
+    for (int i = 0; i < argc; i++) JS_FreeValue(ctx, argv[i]);
+
+    return result;
+}
+
+// Converters below take the ownership of val, they return 0 or NULL with a pending
+// java exception if val is an exception or can't be converted.
+
+static jint js_value_to_java_int(JNIEnv *env, JSContext *ctx, JSValue val) {
+    int32_t tag = JS_VALUE_GET_NORM_TAG(val);
+    if (tag == JS_TAG_INT) {
+        return JS_VALUE_GET_INT(val);
+    }
+    if (tag == JS_TAG_FLOAT64) {
+        double d = JS_VALUE_GET_FLOAT64(val);
+        if (d >= INT32_MIN && d <= INT32_MAX && (double) (int32_t) d == d) {
+            return (jint) d;
+        }
+        THROW_JS_DATA_EXCEPTION_RET(env, "Can't treat %g as int", d);
+    }
+    if (tag == JS_TAG_EXCEPTION) {
+        throw_js_evaluation_exception(env, ctx);
+        return 0;
+    }
+    JS_FreeValue(ctx, val);
+    THROW_JS_DATA_EXCEPTION_RET(env, "Invalid JSValue tag for %s: %d", "int", tag);
+}
+
+static jdouble js_value_to_java_double(JNIEnv *env, JSContext *ctx, JSValue val) {
+    int32_t tag = JS_VALUE_GET_NORM_TAG(val);
+    if (tag == JS_TAG_INT) {
+        return JS_VALUE_GET_INT(val);
+    }
+    if (tag == JS_TAG_FLOAT64) {
+        return JS_VALUE_GET_FLOAT64(val);
+    }
+    if (tag == JS_TAG_EXCEPTION) {
+        throw_js_evaluation_exception(env, ctx);
+        return 0;
+    }
+    JS_FreeValue(ctx, val);
+    THROW_JS_DATA_EXCEPTION_RET(env, "Invalid JSValue tag for %s: %d", "double", tag);
+}
+
+static jboolean js_value_to_java_boolean(JNIEnv *env, JSContext *ctx, JSValue val) {
+    int32_t tag = JS_VALUE_GET_NORM_TAG(val);
+    if (tag == JS_TAG_BOOL) {
+        return (jboolean) JS_VALUE_GET_BOOL(val);
+    }
+    if (tag == JS_TAG_EXCEPTION) {
+        throw_js_evaluation_exception(env, ctx);
+        return JNI_FALSE;
+    }
+    JS_FreeValue(ctx, val);
+    THROW_JS_DATA_EXCEPTION_RET(env, "Invalid JSValue tag for %s: %d", "boolean", tag);
+}
+
+// null and undefined are converted to NULL without exception
+static jstring js_value_to_java_string(JNIEnv *env, JSContext *ctx, JSValue val) {
+    int32_t tag = JS_VALUE_GET_NORM_TAG(val);
+    if (tag == JS_TAG_STRING) {
+        jstring result = js_string_to_java_string(env, val);
+        JS_FreeValue(ctx, val);
+        return result;
+    }
+    if (tag == JS_TAG_NULL || tag == JS_TAG_UNDEFINED) {
+        return NULL;
+    }
+    if (tag == JS_TAG_EXCEPTION) {
+        throw_js_evaluation_exception(env, ctx);
+        return NULL;
+    }
+    JS_FreeValue(ctx, val);
+    THROW_JS_DATA_EXCEPTION_RET(env, "Invalid JSValue tag for %s: %d", "string", tag);
+}
+
+#define INVOKE_VALUE_FUNCTION_FOR_METHOD(METHOD_NAME, JNI_TYPE, CONVERT)                      \
+JNIEXPORT JNI_TYPE JNICALL                                                                  \
+METHOD_NAME(                                                                                \
+    JNIEnv *env,                                                                            \
+    jclass __unused clazz,                                                                  \
+    jlong context,                                                                          \
+    jlong function,                                                                         \
+    jobject thisObj,                                                                        \
+    jobjectArray args                                                                       \
+) {                                                                                         \
+    JSContext *ctx = (JSContext *) context;                                                 \
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);                                          \
+    CHECK_FALSE_RET(env, function != 0, "Null function");                                   \
+    CHECK_NULL_RET(env, args, "Null arguments");                                            \
+                                                                                            \
+    int argc = (*env)->GetArrayLength(env, args);                                           \
+    JSValueConst argv[argc];                                                                \
+    if (get_java_values(env, args, argc, argv)) return 0;                                   \
+                                                                                            \
+    JSValue ret;                                                                            \
+    if (call_function_value(env, ctx, function, thisObj, argc, argv, &ret)) return 0;      \
+                                                                                            \
+    return CONVERT(env, ctx, ret);                                                          \
+}
+
+INVOKE_VALUE_FUNCTION_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionForInt,
+    jint,
+    js_value_to_java_int
+)
+
+INVOKE_VALUE_FUNCTION_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionForDouble,
+    jdouble,
+    js_value_to_java_double
+)
+
+INVOKE_VALUE_FUNCTION_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionForBoolean,
+    jboolean,
+    js_value_to_java_boolean
+)
+
+INVOKE_VALUE_FUNCTION_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_invokeValueFunctionForString,
+    jstring,
+    js_value_to_java_string
+)
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueProperty__JJI(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jint index
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+
+    jlong result = 0;
+
+    JSValue prop = JS_GetPropertyUint32(ctx, QJ_GetHandleValue(value), (uint32_t) index);
+
+    COPY_JS_VALUE(ctx, prop, result);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueProperty__JJLjava_lang_String_2(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jstring name
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    CHECK_NULL_RET(env, name, "Null name");
+
+    const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
+    CHECK_NULL_RET(env, name_utf, MSG_OOM);
+
+    jlong result = 0;
+
+    JSValue prop = JS_GetPropertyStr(ctx, QJ_GetHandleValue(value), name_utf);
+
+    COPY_JS_VALUE(ctx, prop, result);
+
+    (*env)->ReleaseStringUTFChars(env, name, name_utf);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+// Reads all the properties, describes them like describeValue, and stores
+// their descriptions and payloads to the arrays. Float64 values are freed
+// at once, their handles are 0. Returns NULL if any property can't be read,
+// the JS exception is left in the context.
+JNIEXPORT jlongArray JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueProperties(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jobjectArray names,
+    jintArray descriptions,
+    jobjectArray payloads
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    CHECK_NULL_RET(env, names, "Null names");
+    CHECK_NULL_RET(env, descriptions, "Null descriptions");
+    CHECK_NULL_RET(env, payloads, "Null payloads");
+
+    JSValue val = QJ_GetHandleValue(value);
+    jsize count = (*env)->GetArrayLength(env, names);
+    CHECK_FALSE_RET(env, (*env)->GetArrayLength(env, descriptions) >= count * DESCRIPTION_SIZE, "Invalid descriptions");
+    CHECK_FALSE_RET(env, (*env)->GetArrayLength(env, payloads) >= count, "Invalid payloads");
+
+    jlongArray result = (*env)->NewLongArray(env, count);
+    CHECK_NULL_RET(env, result, MSG_OOM);
+    jlong *handles = (*env)->GetLongArrayElements(env, result, NULL);
+    CHECK_NULL_RET(env, handles, MSG_OOM);
+    jint *desc = (*env)->GetIntArrayElements(env, descriptions, NULL);
+    if (desc == NULL) {
+        (*env)->ReleaseLongArrayElements(env, result, handles, JNI_ABORT);
+        THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
+    }
+
+    jsize i;
+    for (i = 0; i < count; i++) {
+        jstring name = (*env)->GetObjectArrayElement(env, names, i);
+        if (name == NULL) {
+            throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, "Null name");
+            break;
+        }
+        const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
+        if (name_utf == NULL) {
+            (*env)->DeleteLocalRef(env, name);
+            throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, MSG_OOM);
+            break;
+        }
+        JSValue prop = JS_GetPropertyStr(ctx, val, name_utf);
+        (*env)->ReleaseStringUTFChars(env, name, name_utf);
+        (*env)->DeleteLocalRef(env, name);
+
+        // Leave the exception in the context
+        if (JS_IsException(prop)) break;
+
+        jobject payload = describe_value(env, ctx, prop, desc + i * DESCRIPTION_SIZE);
+        if ((*env)->ExceptionCheck(env)) {
+            JS_FreeValue(ctx, prop);
+            break;
+        }
+        if (payload != NULL) {
+            (*env)->SetObjectArrayElement(env, payloads, i, payload);
+            (*env)->DeleteLocalRef(env, payload);
+        }
+
+        if (JS_VALUE_GET_NORM_TAG(prop) == JS_TAG_FLOAT64) {
+            // Rebuilt from the description
+            handles[i] = 0;
+            continue;
+        }
+
+        jlong handle = 0;
+        COPY_JS_VALUE(ctx, prop, handle);
+        if (handle == 0) {
+            throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, MSG_OOM);
+            break;
+        }
+        handles[i] = handle;
+    }
+
+    if (i < count) {
+        // Free what have been read
+        for (jsize j = 0; j < i; j++) {
+            if (handles[j] != 0) QJ_FreeHandle(ctx, handles[j]);
+        }
+        (*env)->ReleaseIntArrayElements(env, descriptions, desc, JNI_ABORT);
+        (*env)->ReleaseLongArrayElements(env, result, handles, JNI_ABORT);
+        return NULL;
+    }
+
+    (*env)->ReleaseIntArrayElements(env, descriptions, desc, 0);
+    (*env)->ReleaseLongArrayElements(env, result, handles, 0);
+
+    return result;
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setValueProperty__JJILcom_verve_shiqi_quickjs_JSValue_2(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jint index,
+    jobject property
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
+
+    // JS_SetPropertyUint32 requires a reference count of the property JSValue
+    // Meanwhile, it calls JS_FreeValue on the property JSValue if it fails
+    JS_DupValue(ctx, prop);
+
+    return (jboolean) (JS_SetPropertyUint32(ctx, val, (uint32_t) index, prop) >= 0);
+}
+
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setValueProperty__JJLjava_lang_String_2Lcom_verve_shiqi_quickjs_JSValue_2(
+    JNIEnv *env,
+    jclass __unused clazz,
     jlong context,
     jlong value,
     jstring name,
-    jlong property
+    jobject property
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
     CHECK_NULL_RET(env, name, "Null name");
-    JSValue *prop = (JSValue *) property;
-    CHECK_NULL_RET(env, prop, "Null property");
+    JSValue val = QJ_GetHandleValue(value);
+    JSValue prop;
+    if (QJ_GetJavaValue(env, property, &prop)) return JNI_FALSE;
 
     const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
     CHECK_NULL_RET(env, name_utf, MSG_OOM);
 
     // JS_SetPropertyStr requires a reference count of the property JSValue
     // Meanwhile, it calls JS_FreeValue on the property JSValue if it fails
-    JS_DupValue(ctx, *prop);
+    JS_DupValue(ctx, prop);
 
-    jboolean result = (jboolean) (JS_SetPropertyStr(ctx, *val, name_utf, *prop) >= 0);
+    jboolean result = (jboolean) (JS_SetPropertyStr(ctx, val, name_utf, prop) >= 0);
 
     (*env)->ReleaseStringUTFChars(env, name, name_utf);
 
     return result;
 }
 
+// Sets the properties in order, stops at the first failure.
+JNIEXPORT jboolean JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_setValueProperties(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value,
+    jobjectArray names,
+    jobjectArray properties
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    CHECK_NULL_RET(env, names, "Null names");
+    CHECK_NULL_RET(env, properties, "Null properties");
+
+    JSValue val = QJ_GetHandleValue(value);
+    jsize count = (*env)->GetArrayLength(env, names);
+    CHECK_FALSE_RET(env, (*env)->GetArrayLength(env, properties) == count, "Invalid properties");
+
+    for (jsize i = 0; i < count; i++) {
+        jobject property = (*env)->GetObjectArrayElement(env, properties, i);
+        JSValue prop;
+        int error = QJ_GetJavaValue(env, property, &prop);
+        (*env)->DeleteLocalRef(env, property);
+        if (error) return JNI_FALSE;
+
+        jstring name = (*env)->GetObjectArrayElement(env, names, i);
+        CHECK_NULL_RET(env, name, "Null name");
+        const char *name_utf = (*env)->GetStringUTFChars(env, name, NULL);
+        if (name_utf == NULL) {
+            (*env)->DeleteLocalRef(env, name);
+            THROW_ILLEGAL_STATE_EXCEPTION_RET(env, MSG_OOM);
+        }
+
+        // JS_SetPropertyStr takes the reference count, see setValueProperty
+        JS_DupValue(ctx, prop);
+        int ret = JS_SetPropertyStr(ctx, val, name_utf, prop);
+
+        (*env)->ReleaseStringUTFChars(env, name, name_utf);
+        (*env)->DeleteLocalRef(env, name);
+
+        if (ret < 0) return JNI_FALSE;
+    }
+
+    return JNI_TRUE;
+}
+
 #define TO_ARRAY(METHOD_NAME, JNI_ARRAY_TYPE, JNI_TYPE, TYPE_BYTES, NEW_METHOD, GET_METHOD, RELEASE_METHOD) \
 JNIEXPORT JNI_ARRAY_TYPE JNICALL                                                                            \
 METHOD_NAME(                                                                                                \
@@ -858,11 +1695,11 @@ METHOD_NAME(
 ) {                                                                                                         \
     JSContext *ctx = (JSContext *) context;                                                                 \
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);                                                          \
-    JSValue *val = (JSValue *) value;                                                                       \
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);                                                            \
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);                                                    \
+    JSValue val = QJ_GetHandleValue(value);                                                                 \
                                                                                                             \
     size_t size = 0;                                                                                        \
-    uint8_t *buffer = JS_GetArrayBuffer(ctx, &size, *val);                                                  \
+    uint8_t *buffer = JS_GetArrayBuffer(ctx, &size, val);                                                   \
     CHECK_NULL_RET(env, buffer, "No buffer");                                                               \
     CHECK_FALSE_RET(env, size % (TYPE_BYTES) == 0, "Size not matched");                                     \
                                                                                                             \
@@ -967,65 +1804,110 @@ TO_ARRAY(
         }                                                                                          \
     } while (0)
 
-JNIEXPORT jboolean JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueBoolean(
+JNIEXPORT jdouble JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueFloat64(
     JNIEnv *env,
     jclass __unused clazz,
     jlong value
 ) {
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    CHECK_JS_TAG_RET(*val, JS_TAG_BOOL, "boolean");
-    return (jboolean) (JS_VALUE_GET_BOOL(*val));
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    CHECK_JS_TAG_RET(val, JS_TAG_FLOAT64, "float64");
+    return (jdouble) JS_VALUE_GET_FLOAT64(val);
 }
 
-JNIEXPORT jint JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueInt(
+JNIEXPORT jstring JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueString(
     JNIEnv *env,
     jclass __unused clazz,
+    jlong context,
     jlong value
 ) {
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    CHECK_JS_TAG_RET(*val, JS_TAG_INT, "int");
-    return (jint) (JS_VALUE_GET_INT(*val));
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    CHECK_JS_TAG_RET(val, JS_TAG_STRING, "string");
+    return js_string_to_java_string(env, val);
 }
 
-JNIEXPORT jdouble JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueFloat64(
+JNIEXPORT jchar JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueStringChar(
     JNIEnv *env,
     jclass __unused clazz,
-    jlong value
+    jlong value,
+    jint index
 ) {
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    CHECK_JS_TAG_RET(*val, JS_TAG_FLOAT64, "float64");
-    return (jdouble) JS_VALUE_GET_FLOAT64(*val);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    CHECK_JS_TAG_RET(val, JS_TAG_STRING, "string");
+
+    uint32_t len;
+    int is_wide;
+    const void *buf = JS_GetStringBuffer(val, &len, &is_wide);
+    CHECK_FALSE_RET(env, index >= 0 && (uint32_t) index < len, "Invalid string index");
+    return is_wide ? ((const uint16_t *) buf)[index] : ((const uint8_t *) buf)[index];
 }
 
 JNIEXPORT jstring JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getValueString(
+Java_com_verve_shiqi_quickjs_QuickJS_getValueStringRegion(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jlong value
+    jlong value,
+    jint start,
+    jint end
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    CHECK_JS_TAG_RET(*val, JS_TAG_STRING, "string");
-
-    const char *str = JS_ToCString(ctx, *val);
-    CHECK_NULL_RET(env, str, MSG_OOM);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    CHECK_JS_TAG_RET(val, JS_TAG_STRING, "string");
+    CHECK_FALSE_RET(env, start >= 0, "Invalid string region");
+    return js_string_region_to_java_string(env, val, (uint32_t) start, (uint32_t) end);
+}
 
-    jstring j_str = (*env)->NewStringUTF(env, str);
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getValueStringChars(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong value,
+    jint start,
+    jint end,
+    jcharArray dst,
+    jint dst_start
+) {
+    CHECK_FALSE(env, value != 0, MSG_NULL_JS_VALUE);
+    CHECK_NULL(env, dst, "Null dst");
+    JSValue val = QJ_GetHandleValue(value);
+    if (JS_VALUE_GET_NORM_TAG(val) != JS_TAG_STRING) {
+        THROW_JS_DATA_EXCEPTION(env, "Invalid JSValue tag for %s: %d", "string", JS_VALUE_GET_NORM_TAG(val));
+    }
 
-    JS_FreeCString(ctx, str);
+    uint32_t len;
+    int is_wide;
+    const void *buf = JS_GetStringBuffer(val, &len, &is_wide);
+    CHECK_FALSE(env, start >= 0 && start <= end && (uint32_t) end <= len, "Invalid string region");
 
-    CHECK_NULL_RET(env, j_str, MSG_OOM);
+    if (is_wide) {
+        (*env)->SetCharArrayRegion(env, dst, dst_start, end - start, (const jchar *) buf + start);
+        return;
+    }
 
-    return j_str;
+    // Latin-1, widen it chunk by chunk
+    const uint8_t *str8 = buf;
+    jchar chunk[LATIN1_STACK_BUFFER_LENGTH];
+    while (start < end) {
+        jint count = end - start;
+        if (count > LATIN1_STACK_BUFFER_LENGTH) count = LATIN1_STACK_BUFFER_LENGTH;
+        for (jint i = 0; i < count; i++) {
+            chunk[i] = str8[start + i];
+        }
+        (*env)->SetCharArrayRegion(env, dst, dst_start, count, chunk);
+        if ((*env)->ExceptionCheck(env)) return;
+        start += count;
+        dst_start += count;
+    }
 }
 
 JNIEXPORT jobject JNICALL
@@ -1037,9 +1919,9 @@ Java_com_verve_shiqi_quickjs_QuickJS_getValueJavaObject(
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL_RET(env, val, MSG_NULL_JS_VALUE);
-    return QJ_GetJavaObject(ctx, *val);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    JSValue val = QJ_GetHandleValue(value);
+    return QJ_GetJavaObject(ctx, env, val);
 }
 
 JNIEXPORT void JNICALL
@@ -1051,21 +1933,38 @@ Java_com_verve_shiqi_quickjs_QuickJS_destroyValue(
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
-    JSValue *val = (JSValue *) value;
-    CHECK_NULL(env, val, MSG_NULL_JS_VALUE);
-    JS_FreeValue(ctx, *val);
-    js_free_rt(JS_GetRuntime(ctx), val);
+    CHECK_FALSE(env, value != 0, MSG_NULL_JS_VALUE);
+    QJ_FreeHandle(ctx, value);
 }
 
-JNIEXPORT jobject JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getException(
+#define DESTROY_VALUES_CHUNK 64
+
+JNIEXPORT void JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_destroyValues(
     JNIEnv *env,
     jclass __unused clazz,
-    jlong context
+    jlong context,
+    jlongArray values,
+    jint count
 ) {
     JSContext *ctx = (JSContext *) context;
-    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL(env, values, "Null values");
+    CHECK_FALSE(env, count >= 0 && count <= (*env)->GetArrayLength(env, values), "Invalid count");
+
+    // Freeing values may run finalizers calling back into JNI, so no critical access here
+    jlong chunk[DESTROY_VALUES_CHUNK];
+    for (jint start = 0; start < count; start += DESTROY_VALUES_CHUNK) {
+        jint length = count - start < DESTROY_VALUES_CHUNK ? count - start : DESTROY_VALUES_CHUNK;
+        (*env)->GetLongArrayRegion(env, values, start, length, chunk);
+        for (jint i = 0; i < length; i++) {
+            if (chunk[i] != 0) QJ_FreeHandle(ctx, chunk[i]);
+        }
+    }
+}
 
+// Converts the thrown value to a java JSException
+static jobject new_js_exception(JNIEnv *env, JSContext *ctx, JSValueConst exception) {
     jclass js_exception_class = (*env)->FindClass(env, "com/verve/shiqi/quickjs/JSException");
     CHECK_NULL_RET(env, js_exception_class, "Can't find JSException");
 
@@ -1075,7 +1974,6 @@ Java_com_verve_shiqi_quickjs_QuickJS_getException(
     const char *exception_str = NULL;
     const char *stack_str = NULL;
 
-    JSValue exception = JS_GetException(ctx);
     exception_str = JS_ToCString(ctx, exception);
     jboolean is_error = (jboolean) JS_IsError(ctx, exception);
     if (is_error) {
@@ -1085,7 +1983,6 @@ Java_com_verve_shiqi_quickjs_QuickJS_getException(
         }
         JS_FreeValue(ctx, stack);
     }
-    JS_FreeValue(ctx, exception);
 
     jstring exception_j_str = (exception_str != NULL) ? (*env)->NewStringUTF(env, exception_str) : NULL;
     jstring stack_j_str = (stack_str != NULL) ? (*env)->NewStringUTF(env, stack_str) : NULL;
@@ -1103,66 +2000,483 @@ Java_com_verve_shiqi_quickjs_QuickJS_getException(
     return result;
 }
 
-JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_getGlobalObject(
+// Takes the pending JS exception of the context as a java JSException
+static jobject get_js_exception(JNIEnv *env, JSContext *ctx) {
+    JSValue exception = JS_GetException(ctx);
+    jobject result = new_js_exception(env, ctx, exception);
+    JS_FreeValue(ctx, exception);
+    return result;
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getException(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    return get_js_exception(env, ctx);
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_toJSException(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jlong value
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, value != 0, MSG_NULL_JS_VALUE);
+    return new_js_exception(env, ctx, QJ_GetHandleValue(value));
+}
 
-    JSValue *result = NULL;
+static void throw_js_evaluation_exception(JNIEnv *env, JSContext *ctx) {
+    jobject js_exception = get_js_exception(env, ctx);
+    if (js_exception == NULL) return;
 
-    JSValue val = JS_GetGlobalObject(ctx);
+    jclass exception_class = (*env)->FindClass(env, "com/verve/shiqi/quickjs/JSEvaluationException");
+    CHECK_NULL(env, exception_class, "Can't find JSEvaluationException");
+
+    jmethodID constructor_id = (*env)->GetMethodID(env, exception_class, "<init>", "(Lcom/verve/shiqi/quickjs/JSException;)V");
+    CHECK_NULL(env, constructor_id, "Can't find JSEvaluationException constructor");
+
+    jthrowable exception = (*env)->NewObject(env, exception_class, constructor_id, js_exception);
+    CHECK_NULL(env, exception, "Can't create instance of JSEvaluationException");
+
+    (*env)->Throw(env, exception);
+}
+
+// Deep conversion of JS values to java HashMap, ArrayList, String, Double and Boolean
+
+typedef struct ConvertState {
+    JNIEnv *env;
+    JSContext *ctx;
+    int max_depth;
+    int depth;
+    // Objects on the current path, for cycle detection
+    void *path[];
+} ConvertState;
+
+static jobject convert_to_java(ConvertState *state, JSValueConst val);
+
+static jobject convert_array_to_java(ConvertState *state, JSValueConst val) {
+    JNIEnv *env = state->env;
+    JSContext *ctx = state->ctx;
+
+    int64_t length;
+    JSValue length_val = JS_GetPropertyStr(ctx, val, "length");
+    int error = JS_ToInt64(ctx, &length, length_val);
+    JS_FreeValue(ctx, length_val);
+    if (error) {
+        throw_js_evaluation_exception(env, ctx);
+        return NULL;
+    }
+    CHECK_FALSE_RET(env, length >= 0 && length <= INT32_MAX, "Invalid array length");
+
+    jobject list = (*env)->NewObject(env, array_list_class, array_list_constructor, (jint) length);
+    if (list == NULL) return NULL;
+
+    for (int64_t i = 0; i < length; i++) {
+        JSValue element_val = JS_GetPropertyUint32(ctx, val, (uint32_t) i);
+        if (JS_IsException(element_val)) {
+            throw_js_evaluation_exception(env, ctx);
+            return NULL;
+        }
+        jobject element = convert_to_java(state, element_val);
+        JS_FreeValue(ctx, element_val);
+        if ((*env)->ExceptionCheck(env)) return NULL;
+        (*env)->CallBooleanMethod(env, list, array_list_add_method, element);
+        if (element != NULL) (*env)->DeleteLocalRef(env, element);
+        if ((*env)->ExceptionCheck(env)) return NULL;
+    }
+
+    return list;
+}
+
+static jobject convert_object_to_java(ConvertState *state, JSValueConst val) {
+    JNIEnv *env = state->env;
+    JSContext *ctx = state->ctx;
+
+    JSPropertyEnum *tab = NULL;
+    uint32_t len = 0;
+    if (JS_GetOwnPropertyNames(ctx, &tab, &len, val, JS_GPN_STRING_MASK | JS_GPN_ENUM_ONLY)) {
+        throw_js_evaluation_exception(env, ctx);
+        return NULL;
+    }
+
+    jobject map = (*env)->NewObject(env, hash_map_class, hash_map_constructor);
+
+    uint32_t i;
+    for (i = 0; map != NULL && i < len; i++) {
+        // Skip what JSON.stringify skips
+        JSValue prop = JS_GetProperty(ctx, val, tab[i].atom);
+        if (JS_IsException(prop)) {
+            throw_js_evaluation_exception(env, ctx);
+            break;
+        }
+        if (JS_IsUndefined(prop) || JS_IsFunction(ctx, prop) || JS_IsSymbol(prop)) {
+            JS_FreeValue(ctx, prop);
+            continue;
+        }
+        jobject value = convert_to_java(state, prop);
+        JS_FreeValue(ctx, prop);
+        if ((*env)->ExceptionCheck(env)) break;
+
+        JSValue key_val = JS_AtomToString(ctx, tab[i].atom);
+        jstring key = JS_IsException(key_val) ? NULL : js_string_to_java_string(env, key_val);
+        JS_FreeValue(ctx, key_val);
+        if (key == NULL) {
+            if (!(*env)->ExceptionCheck(env)) throw_exception(env, CLASS_NAME_ILLEGAL_STATE_EXCEPTION, MSG_OOM);
+            if (value != NULL) (*env)->DeleteLocalRef(env, value);
+            break;
+        }
+
+        jobject old = (*env)->CallObjectMethod(env, map, hash_map_put_method, key, value);
+        if (old != NULL) (*env)->DeleteLocalRef(env, old);
+        (*env)->DeleteLocalRef(env, key);
+        if (value != NULL) (*env)->DeleteLocalRef(env, value);
+        if ((*env)->ExceptionCheck(env)) break;
+    }
+
+    for (uint32_t j = 0; j < len; j++) {
+        JS_FreeAtom(ctx, tab[j].atom);
+    }
+    js_free(ctx, tab);
+
+    return (*env)->ExceptionCheck(env) ? NULL : map;
+}
+
+// Returns NULL for JS null and undefined, and values which can't be represented,
+// like functions and symbols. Returns NULL with a pending java exception if it fails.
+static jobject convert_to_java(ConvertState *state, JSValueConst val) {
+    JNIEnv *env = state->env;
+    JSContext *ctx = state->ctx;
+
+    switch (JS_VALUE_GET_NORM_TAG(val)) {
+        case JS_TAG_INT:
+            return (*env)->CallStaticObjectMethod(env, double_class, double_value_of_method,
+                                                  (jdouble) JS_VALUE_GET_INT(val));
+        case JS_TAG_FLOAT64:
+            return (*env)->CallStaticObjectMethod(env, double_class, double_value_of_method,
+                                                  (jdouble) JS_VALUE_GET_FLOAT64(val));
+        case JS_TAG_BOOL:
+            return (*env)->CallStaticObjectMethod(env, boolean_class, boolean_value_of_method,
+                                                  (jboolean) JS_VALUE_GET_BOOL(val));
+        case JS_TAG_STRING:
+            return js_string_to_java_string(env, val);
+        case JS_TAG_OBJECT:
+            break;
+        default:
+            return NULL;
+    }
+
+    if (JS_IsFunction(ctx, val)) return NULL;
+
+    jobject java_object = QJ_GetJavaObject(ctx, env, val);
+    if (java_object != NULL) return java_object;
+
+    void *ptr = JS_VALUE_GET_PTR(val);
+    for (int i = 0; i < state->depth; i++) {
+        if (state->path[i] == ptr) {
+            THROW_JS_DATA_EXCEPTION_RET(env, "Can't convert circular structure");
+        }
+    }
+    if (state->depth >= state->max_depth) {
+        THROW_JS_DATA_EXCEPTION_RET(env, "Exceeds max depth %d", state->max_depth);
+    }
+
+    state->path[state->depth++] = ptr;
+    jobject result = JS_IsArray(ctx, val) > 0
+            ? convert_array_to_java(state, val)
+            : convert_object_to_java(state, val);
+    state->depth--;
+
+    return result;
+}
+
+JNIEXPORT jobject JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_toJavaObject(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jobject value,
+    jint max_depth
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_FALSE_RET(env, max_depth > 0, "Invalid max depth");
+
+    JSValue val;
+    if (QJ_GetJavaValue(env, value, &val)) return NULL;
+
+    // Each level holds its container and the element in progress
+    if ((*env)->EnsureLocalCapacity(env, max_depth * 2 + 16) < 0) return NULL;
+
+    ConvertState *state = malloc(sizeof(ConvertState) + sizeof(void *) * max_depth);
+    CHECK_NULL_RET(env, state, MSG_OOM);
+    state->env = env;
+    state->ctx = ctx;
+    state->max_depth = max_depth;
+    state->depth = 0;
+
+    jobject result = convert_to_java(state, val);
+
+    free(state);
+
+    return result;
+}
+
+#define JSON_FILE_NAME "<json>"
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_parseJSON(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jstring json
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL_RET(env, json, "Null json");
+
+    size_t json_length = 0;
+    char *json_utf = java_string_to_utf8(env, json, &json_length);
+    CHECK_NULL_RET(env, json_utf, MSG_OOM);
+
+    jlong result = 0;
+    JSValue val = JS_ParseJSON(ctx, json_utf, json_length, JSON_FILE_NAME);
     COPY_JS_VALUE(ctx, val, result);
 
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    free(json_utf);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
 
-    return (jlong) result;
+    return result;
 }
 
 JNIEXPORT jlong JNICALL
-Java_com_verve_shiqi_quickjs_QuickJS_evaluate(
+Java_com_verve_shiqi_quickjs_QuickJS_parseJSONBytes(
     JNIEnv *env,
     jclass __unused clazz,
     jlong context,
-    jstring source_code,
-    jstring file_name,
-    jint flags
+    jbyteArray json,
+    jint start,
+    jint length
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL_RET(env, json, "Null json");
+
+    // The parser needs a null-terminated buffer
+    char *buf = malloc((size_t) length + 1);
+    CHECK_NULL_RET(env, buf, MSG_OOM);
+    (*env)->GetByteArrayRegion(env, json, start, length, (jbyte *) buf);
+    if ((*env)->ExceptionCheck(env)) {
+        free(buf);
+        return 0;
+    }
+    buf[length] = '\0';
+
+    jlong result = 0;
+    JSValue val = JS_ParseJSON(ctx, buf, (size_t) length, JSON_FILE_NAME);
+    COPY_JS_VALUE(ctx, val, result);
+
+    free(buf);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_parseJSONBuffer(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jobject json,
+    jint start,
+    jint end
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+    CHECK_NULL_RET(env, json, "Null json");
+
+    char *address = (*env)->GetDirectBufferAddress(env, json);
+    CHECK_NULL_RET(env, address, "Not a direct buffer");
+    jlong capacity = (*env)->GetDirectBufferCapacity(env, json);
+    CHECK_FALSE_RET(env, start >= 0 && start <= end && end <= capacity, "Invalid buffer range");
+
+    size_t length = (size_t) (end - start);
+    char *buf = address + start;
+    char *copy = NULL;
+    // Parse it in place if a zero byte follows the data, otherwise
+    // copy it, the parser needs a null-terminated buffer
+    if (end >= capacity || address[end] != '\0') {
+        copy = malloc(length + 1);
+        CHECK_NULL_RET(env, copy, MSG_OOM);
+        memcpy(copy, buf, length);
+        copy[length] = '\0';
+        buf = copy;
+    }
+
+    jlong result = 0;
+    JSValue val = JS_ParseJSON(ctx, buf, length, JSON_FILE_NAME);
+    COPY_JS_VALUE(ctx, val, result);
+
+    free(copy);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+JNIEXPORT jstring JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_stringifyValue(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jobject value,
+    jint indent
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+
+    JSValue val;
+    if (QJ_GetJavaValue(env, value, &val)) return NULL;
+
+    JSValue space = indent > 0 ? JS_NewInt32(ctx, indent) : JS_UNDEFINED;
+    JSValue str = JS_JSONStringify(ctx, val, JS_UNDEFINED, space);
+
+    // undefined for values which can't be serialized
+    return js_value_to_java_string(env, ctx, str);
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_getGlobalObject(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context
 ) {
     JSContext *ctx = (JSContext *) context;
     CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+
+    jlong result = 0;
+
+    JSValue val = JS_GetGlobalObject(ctx);
+    COPY_JS_VALUE(ctx, val, result);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
+
+// Evaluates the script, stores the result to ret.
+// Returns -1 with a pending java exception if it fails.
+static int eval_script(
+    JNIEnv *env,
+    JSContext *ctx,
+    jstring source_code,
+    jstring file_name,
+    jint flags,
+    JSValue *ret
+) {
     CHECK_NULL_RET(env, source_code, "Null source code");
     CHECK_NULL_RET(env, file_name, "Null file name");
 
-    const char *source_code_utf = NULL;
-    jsize source_code_length = 0;
+    char *source_code_utf = NULL;
+    size_t source_code_length = 0;
     const char *file_name_utf = NULL;
-    JSValue *result = NULL;
+    int result = -1;
 
-    source_code_utf = (*env)->GetStringUTFChars(env, source_code, NULL);
-    source_code_length = (*env)->GetStringUTFLength(env, source_code);
+    source_code_utf = java_string_to_utf8(env, source_code, &source_code_length);
     file_name_utf = (*env)->GetStringUTFChars(env, file_name, NULL);
 
     if (source_code_utf != NULL && file_name_utf != NULL) {
-        JSValue val = JS_Eval(ctx, source_code_utf, (size_t) source_code_length, file_name_utf, flags);
-
-        COPY_JS_VALUE(ctx, val, result);
+        *ret = JS_Eval(ctx, source_code_utf, source_code_length, file_name_utf, flags);
+        result = 0;
     }
 
     if (source_code_utf != NULL) {
-        (*env)->ReleaseStringUTFChars(env, source_code, source_code_utf);
+        free(source_code_utf);
     }
     if (file_name_utf != NULL) {
         (*env)->ReleaseStringUTFChars(env, file_name, file_name_utf);
     }
 
-    CHECK_NULL_RET(env, result, MSG_OOM);
+    CHECK_FALSE_RET(env, result == 0, MSG_OOM);
+
+    return result;
+}
+
+JNIEXPORT jlong JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_evaluate(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jstring source_code,
+    jstring file_name,
+    jint flags
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+
+    JSValue val;
+    if (eval_script(env, ctx, source_code, file_name, flags, &val)) return 0;
+
+    jlong result = 0;
+
+    COPY_JS_VALUE(ctx, val, result);
+
+    CHECK_FALSE_RET(env, result != 0, MSG_OOM);
+
+    return result;
+}
 
-    return (jlong) result;
+#define EVALUATE_FOR_METHOD(METHOD_NAME, JNI_TYPE, CONVERT)                                   \
+JNIEXPORT JNI_TYPE JNICALL                                                                  \
+METHOD_NAME(                                                                                \
+    JNIEnv *env,                                                                            \
+    jclass __unused clazz,                                                                  \
+    jlong context,                                                                          \
+    jstring source_code,                                                                    \
+    jstring file_name,                                                                      \
+    jint flags                                                                              \
+) {                                                                                         \
+    JSContext *ctx = (JSContext *) context;                                                 \
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);                                          \
+                                                                                            \
+    JSValue val;                                                                            \
+    if (eval_script(env, ctx, source_code, file_name, flags, &val)) return 0;               \
+                                                                                            \
+    return CONVERT(env, ctx, val);                                                          \
 }
 
+EVALUATE_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_evaluateForInt,
+    jint,
+    js_value_to_java_int
+)
+
+EVALUATE_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_evaluateForDouble,
+    jdouble,
+    js_value_to_java_double
+)
+
+EVALUATE_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_evaluateForBoolean,
+    jboolean,
+    js_value_to_java_boolean
+)
+
+EVALUATE_FOR_METHOD(
+    Java_com_verve_shiqi_quickjs_QuickJS_evaluateForString,
+    jstring,
+    js_value_to_java_string
+)
+
 JNIEXPORT void JNICALL
 Java_com_verve_shiqi_quickjs_QuickJS_evaluateBytecode(
     JNIEnv *env,
@@ -1249,6 +2563,46 @@ Java_com_verve_shiqi_quickjs_QuickJS_executePendingJob(JNIEnv *env, jclass clazz
     return JS_ExecutePendingJob(JS_GetRuntime(ctx), &jobCtx);
 }
 
+static int64_t get_monotonic_nanos(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+JNIEXPORT jint JNICALL
+Java_com_verve_shiqi_quickjs_QuickJS_executePendingJobs(
+    JNIEnv *env,
+    jclass __unused clazz,
+    jlong context,
+    jint max_jobs,
+    jlong timeout_nanos
+) {
+    JSContext *ctx = (JSContext *) context;
+    CHECK_NULL_RET(env, ctx, MSG_NULL_JS_CONTEXT);
+
+    JSRuntime *rt = JS_GetRuntime(ctx);
+    // Negative timeout for no deadline
+    int64_t deadline = timeout_nanos < 0 ? INT64_MAX : get_monotonic_nanos() + timeout_nanos;
+    jint count = 0;
+    while (count < max_jobs) {
+        JSContext *job_ctx;
+        int ret = JS_ExecutePendingJob(rt, &job_ctx);
+        if (ret == 0) {
+            break;
+        }
+        count++;
+        if (ret < 0) {
+            // The exception is left in the context of the job
+            throw_js_evaluation_exception(env, job_ctx);
+            break;
+        }
+        if (deadline != INT64_MAX && get_monotonic_nanos() >= deadline) {
+            break;
+        }
+    }
+    return count;
+}
+
 JNIEXPORT jint JNICALL
 JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
     JNIEnv *env = NULL;
@@ -1266,9 +2620,74 @@ JNI_OnLoad(JavaVM *vm, void __unused * reserved) {
         return JNI_ERR;
     }
 
+    jclass gc_listener_clazz = (*env)->FindClass(env, "com/verve/shiqi/quickjs/JSRuntime$GCListener");
+    if (gc_listener_clazz == NULL) {
+        return JNI_ERR;
+    }
+    on_gc_method = (*env)->GetMethodID(env, gc_listener_clazz, "onGC", "(JJJJ)V");
+    if (on_gc_method == NULL) {
+        return JNI_ERR;
+    }
+
+    double_class = (*env)->FindClass(env, "java/lang/Double");
+    double_class = (*env)->NewGlobalRef(env, double_class);
+    if (double_class == NULL) {
+        return JNI_ERR;
+    }
+    double_value_of_method = (*env)->GetStaticMethodID(env, double_class, "valueOf", "(D)Ljava/lang/Double;");
+    if (double_value_of_method == NULL) {
+        return JNI_ERR;
+    }
+
+    boolean_class = (*env)->FindClass(env, "java/lang/Boolean");
+    boolean_class = (*env)->NewGlobalRef(env, boolean_class);
+    if (boolean_class == NULL) {
+        return JNI_ERR;
+    }
+    boolean_value_of_method = (*env)->GetStaticMethodID(env, boolean_class, "valueOf", "(Z)Ljava/lang/Boolean;");
+    if (boolean_value_of_method == NULL) {
+        return JNI_ERR;
+    }
+
+    hash_map_class = (*env)->FindClass(env, "java/util/HashMap");
+    hash_map_class = (*env)->NewGlobalRef(env, hash_map_class);
+    if (hash_map_class == NULL) {
+        return JNI_ERR;
+    }
+    hash_map_constructor = (*env)->GetMethodID(env, hash_map_class, "<init>", "()V");
+    if (hash_map_constructor == NULL) {
+        return JNI_ERR;
+    }
+    hash_map_put_method = (*env)->GetMethodID(env, hash_map_class, "put", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;");
+    if (hash_map_put_method == NULL) {
+        return JNI_ERR;
+    }
+
+    array_list_class = (*env)->FindClass(env, "java/util/ArrayList");
+    array_list_class = (*env)->NewGlobalRef(env, array_list_class);
+    if (array_list_class == NULL) {
+        return JNI_ERR;
+    }
+    array_list_constructor = (*env)->GetMethodID(env, array_list_class, "<init>", "(I)V");
+    if (array_list_constructor == NULL) {
+        return JNI_ERR;
+    }
+    array_list_add_method = (*env)->GetMethodID(env, array_list_class, "add", "(Ljava/lang/Object;)Z");
+    if (array_list_add_method == NULL) {
+        return JNI_ERR;
+    }
+
+    if (java_registry_init(env)) {
+        return JNI_ERR;
+    }
+
     if (java_method_init(env)) {
         return JNI_ERR;
     }
 
+    if (java_value_init(env)) {
+        return JNI_ERR;
+    }
+
     return JNI_VERSION_1_6;
 }
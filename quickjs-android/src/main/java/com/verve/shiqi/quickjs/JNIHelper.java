@@ -32,7 +32,8 @@ class JNIHelper {
   private static Type DOUBLE_PRIMITIVE_TYPE = double.class;
 
   private static Object jsValueToJavaValue(JSContext jsContext, Type type, long value) {
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       JSValue jsValue = null;
       try {
         jsContext.checkClosed();
@@ -44,22 +45,27 @@ class JNIHelper {
           QuickJS.destroyValue(jsContext.pointer, value);
         }
       }
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
-  private static long javaValueToJSValue(JSContext jsContext, Type type, boolean value) { return javaValueToJSValue(jsContext, type, (Boolean) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, char value) { return javaValueToJSValue(jsContext, type, (Character) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, byte value) { return javaValueToJSValue(jsContext, type, (Byte) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, short value) { return javaValueToJSValue(jsContext, type, (Short) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, int value) { return javaValueToJSValue(jsContext, type, (Integer) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, long value) { return javaValueToJSValue(jsContext, type, (Long) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, float value) { return javaValueToJSValue(jsContext, type, (Float) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, double value) { return javaValueToJSValue(jsContext, type, (Double) value); }
-  private static long javaValueToJSValue(JSContext jsContext, Type type, Object value) {
-    synchronized (jsContext.jsRuntime) {
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, boolean value) { return javaValueToJSValue(jsContext, type, (Boolean) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, char value) { return javaValueToJSValue(jsContext, type, (Character) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, byte value) { return javaValueToJSValue(jsContext, type, (Byte) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, short value) { return javaValueToJSValue(jsContext, type, (Short) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, int value) { return javaValueToJSValue(jsContext, type, (Integer) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, long value) { return javaValueToJSValue(jsContext, type, (Long) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, float value) { return javaValueToJSValue(jsContext, type, (Float) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, double value) { return javaValueToJSValue(jsContext, type, (Double) value); }
+  private static JSValue javaValueToJSValue(JSContext jsContext, Type type, Object value) {
+    jsContext.jsRuntime.lock();
+    try {
       jsContext.checkClosed();
       TypeAdapter<Object> adapter = jsContext.quickJS.getAdapter(type);
-      return adapter.toJSValue(jsContext, value).pointer;
+      return adapter.toJSValue(jsContext, value);
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
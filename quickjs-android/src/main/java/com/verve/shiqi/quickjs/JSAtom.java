@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.verve.shiqi.quickjs;
+
+/**
+ * A property key interned in the JSContext.
+ * Property access with it skips hashing and looking up the name.
+ * It's pinned until the JSContext is closed, so only create it for keys used repeatedly.
+ *
+ * @see JSContext#createJSAtom(String)
+ */
+public final class JSAtom {
+
+  final int atom;
+  final JSContext jsContext;
+  private final String name;
+
+  JSAtom(int atom, JSContext jsContext, String name) {
+    this.atom = atom;
+    this.jsContext = jsContext;
+    this.name = name;
+  }
+
+  /**
+   * Returns the property name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
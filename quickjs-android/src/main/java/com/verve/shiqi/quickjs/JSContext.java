@@ -23,6 +23,12 @@ import androidx.annotation.Nullable;
 
 import java.io.Closeable;
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * JSContext is a JavaScript context with its own global objects.
@@ -42,6 +48,36 @@ public class JSContext implements Closeable {
   static final int TYPE_EXCEPTION = 6;
   static final int TYPE_FLOAT64 = 7;
 
+  // Number of ints written by QuickJS.describeValue for each value
+  static final int DESCRIPTION_SIZE = 3;
+
+  // Object kinds reported by QuickJS.describeValue
+  static final int KIND_PLAIN = 0;
+  static final int KIND_FUNCTION = 1;
+  static final int KIND_ARRAY = 2;
+  static final int KIND_ARRAY_BUFFER = 3;
+  static final int KIND_JAVA_OBJECT = 4;
+
+  // Values without reference count, except float64, are passed as immediate handles
+  // instead of c pointers. Bit 0 is set, bits 1-4 hold the type, bits 32-63 hold the value.
+  // See java-value.h.
+
+  static boolean isImmediateHandle(long value) {
+    return (value & 1) != 0;
+  }
+
+  static int getImmediateHandleType(long value) {
+    return (int) ((value >>> 1) & 0xf);
+  }
+
+  static int getImmediateHandleValue(long value) {
+    return (int) (value >> 32);
+  }
+
+  static long createImmediateHandle(int type, int value) {
+    return ((long) value << 32) | ((type & 0xf) << 1) | 1;
+  }
+
   /**
    * Global code.
    */
@@ -71,6 +107,18 @@ public class JSContext implements Closeable {
   final QuickJS quickJS;
   final JSRuntime jsRuntime;
   private final NativeCleaner<JSValue> cleaner;
+  // Pinned atoms, released when it's closed, guarded by jsRuntime
+  private final Map<String, JSAtom> atoms = new HashMap<>();
+  // Tag, kind and string length written by QuickJS.describeValue, guarded by jsRuntime
+  private final int[] description = new int[DESCRIPTION_SIZE];
+  // The last opened scope, guarded by jsRuntime
+  @Nullable
+  private JSValueScope scope;
+  // Guarded by jsRuntime
+  @Nullable
+  private JSHandleTracker handleTracker;
+  // The native checkpoint of globals, 0 for none, guarded by jsRuntime
+  private long checkpoint;
   private static final String TAG = "QuickJs JSContext";
 
   JSContext(long pointer, QuickJS quickJS, JSRuntime jsRuntime) {
@@ -84,7 +132,6 @@ public class JSContext implements Closeable {
     if (pointer == 0) {
       throw new IllegalStateException("The JSContext is closed");
     }
-
     // Trigger cleaner
     cleaner.clean();
 
@@ -113,9 +160,12 @@ public class JSContext implements Closeable {
    * Compiles the given JavaScript code in this JSContext to bytecode.
    */
   public byte[] compileJsToBytecode(String code) {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       return QuickJS.compileJsToBytecode(pointer, code);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -182,6 +232,72 @@ public class JSContext implements Closeable {
     return evaluateInternal(script, fileName, type, flags, adapter);
   }
 
+  /**
+   * Evaluates the script in this JSContext.
+   * Returns the result as an int, it's converted natively without creating a JSValue.
+   *
+   * @throws JSDataException if the result is not an int number
+   */
+  public int evaluateForInt(String script, String fileName) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.evaluateForInt(pointer, script, fileName, EVAL_TYPE_GLOBAL);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Evaluates the script in this JSContext.
+   * Returns the result as a double, it's converted natively without creating a JSValue.
+   *
+   * @throws JSDataException if the result is not a number
+   */
+  public double evaluateForDouble(String script, String fileName) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.evaluateForDouble(pointer, script, fileName, EVAL_TYPE_GLOBAL);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Evaluates the script in this JSContext.
+   * Returns the result as a boolean, it's converted natively without creating a JSValue.
+   *
+   * @throws JSDataException if the result is not a boolean
+   */
+  public boolean evaluateForBoolean(String script, String fileName) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.evaluateForBoolean(pointer, script, fileName, EVAL_TYPE_GLOBAL);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Evaluates the script in this JSContext.
+   * Returns the result as a string, null for null and undefined.
+   * It's converted natively without creating a JSValue.
+   *
+   * @throws JSDataException if the result is not a string
+   */
+  @Nullable
+  public String evaluateForString(String script, String fileName) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.evaluateForString(pointer, script, fileName, EVAL_TYPE_GLOBAL);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
   private <T> T evaluateInternal(String script, String fileName, int type, int flags, @Nullable TypeAdapter<T> adapter) {
     if (type != EVAL_TYPE_GLOBAL && type != EVAL_TYPE_MODULE) {
       throw new IllegalArgumentException("Invalid type: " + type);
@@ -190,7 +306,8 @@ public class JSContext implements Closeable {
       throw new IllegalArgumentException("Invalid flags: " + flags);
     }
 
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
 
       long value = QuickJS.evaluate(pointer, script, fileName, type | flags);
@@ -209,6 +326,8 @@ public class JSContext implements Closeable {
         }
         return null;
       }
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -217,7 +336,8 @@ public class JSContext implements Closeable {
       throw new IllegalArgumentException("Invalid flags: " + flags);
     }
 
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
 
       QuickJS.evaluateBytecode(pointer, bytecode, flags);
@@ -237,6 +357,89 @@ public class JSContext implements Closeable {
           QuickJS.destroyValue(pointer, value);
         }
       }
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Evaluates the script and gets its result, or what it settles to if it's a promise.
+   *
+   * On a JSRuntime with a dedicated thread, it's a task on that thread, and this method returns at once.
+   * Otherwise it runs on the calling thread. Pending jobs queued by the script run right after it,
+   * until none is left. Jobs queued later, e.g. by a resolving function called from Java,
+   * run after the next task on the dedicated thread. Otherwise, until the future is done,
+   * they run when the call from Java queuing them returns, on the thread of that call.
+   *
+   * @see JSRuntime#submit(java.util.concurrent.Callable)
+   */
+  public <T> JSFuture<T> evaluateAsync(String script, String fileName, Class<T> clazz) {
+    return evaluateAsync(script, fileName, quickJS.getAdapter(clazz));
+  }
+
+  /**
+   * Evaluates the script and gets its result, or what it settles to if it's a promise.
+   *
+   * @see #evaluateAsync(String, String, Class)
+   */
+  public <T> JSFuture<T> evaluateAsync(String script, String fileName, TypeAdapter<T> adapter) {
+    TypeAdapter<JSValue> resultAdapter = quickJS.getAdapter(JSValue.class);
+    return runAsync(() -> evaluateInternal(script, fileName, EVAL_TYPE_GLOBAL, 0, resultAdapter), adapter);
+  }
+
+  /**
+   * Runs the code, then the pending jobs, on the thread of {@link #evaluateAsync(String, String, Class)}.
+   * The future gets what the result of the code settles to.
+   */
+  <T> JSFuture<T> runAsync(Callable<JSValue> code, TypeAdapter<T> adapter) {
+    JSFuture<T> future = new JSFuture<>();
+    jsRuntime.waitForJobs(future);
+    Runnable task = () -> {
+      JSValueScope scope = null;
+      try {
+        scope = openScope();
+        JSValue result = code.call();
+        // Resolving a new promise with the result unwraps thenables and keeps other values
+        JSObject promise = createJSPromise((resolve, reject) -> resolve.invoke(null, new JSValue[] { result }));
+        JSFunction onFulfilled = createJSFunction((context, args) -> {
+          try {
+            future.set(adapter.fromJSValue(context, args.length > 0 ? args[0] : context.createJSUndefined()));
+          } catch (RuntimeException e) {
+            future.setException(e);
+          }
+          return context.createJSUndefined();
+        });
+        JSFunction onRejected = createJSFunction((context, args) -> {
+          JSValue reason = args.length > 0 ? args[0] : context.createJSUndefined();
+          future.setException(new JSEvaluationException(context.toJSException(reason)));
+          return context.createJSUndefined();
+        });
+        promise.getProperty("then").cast(JSFunction.class).invoke(promise, new JSValue[] { onFulfilled, onRejected });
+      } catch (Exception e) {
+        future.setException(e);
+      } finally {
+        if (scope != null) {
+          scope.close();
+        }
+      }
+    };
+
+    if (jsRuntime.hasDedicatedThread()) {
+      jsRuntime.submit(task);
+    } else {
+      task.run();
+      jsRuntime.runPendingJobs();
+    }
+    return future;
+  }
+
+  private JSException toJSException(JSValue value) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.toJSException(pointer, value.pointer);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -244,7 +447,8 @@ public class JSContext implements Closeable {
    * Execute next pending job. Returns {@code false} if it has no pending job.
    */
   public boolean executePendingJob() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
 
       int code = QuickJS.executePendingJob(pointer);
@@ -253,6 +457,43 @@ public class JSContext implements Closeable {
       } else {
         return code != 0;
       }
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Executes pending jobs in one native call, until none is left or maxJobs jobs have run.
+   *
+   * @return the number of jobs executed
+   * @throws JSEvaluationException if a job throws, the jobs before it have run
+   */
+  public int executePendingJobs(int maxJobs) {
+    return executePendingJobs(maxJobs, Long.MAX_VALUE);
+  }
+
+  /**
+   * Executes pending jobs in one native call, until none is left, maxJobs jobs have run
+   * or the deadline has passed. The deadline is checked after each job, so a positive maxJobs
+   * runs at least one job if it has any.
+   *
+   * @param deadlineNanos a {@link System#nanoTime()} value, {@link Long#MAX_VALUE} for no deadline
+   * @return the number of jobs executed
+   * @throws JSEvaluationException if a job throws, the jobs before it have run
+   */
+  public int executePendingJobs(int maxJobs, long deadlineNanos) {
+    if (maxJobs < 0) {
+      throw new IllegalArgumentException("Only positive number and 0 are accepted as max jobs");
+    }
+
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      // Negative timeout for no deadline
+      long timeoutNanos = deadlineNanos != Long.MAX_VALUE ? Math.max(deadlineNanos - System.nanoTime(), 0) : -1;
+      return QuickJS.executePendingJobs(pointer, maxJobs, timeoutNanos);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -260,10 +501,98 @@ public class JSContext implements Closeable {
    * Returns the global object.
    */
   public JSObject getGlobalObject() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.getGlobalObject(pointer);
       return wrapAsJSValue(val).cast(JSObject.class);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Parses the JSON text, like {@code JSON.parse} without reviver.
+   *
+   * @throws JSEvaluationException if it's not valid JSON
+   */
+  public JSValue parseJSON(String json) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      long val = QuickJS.parseJSON(pointer, json);
+      return wrapAsJSValue(val);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Parses the UTF-8 encoded JSON text, without decoding it as a Java String.
+   *
+   * @throws JSEvaluationException if it's not valid JSON
+   */
+  public JSValue parseJSON(byte[] json) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      long val = QuickJS.parseJSONBytes(pointer, json, 0, json.length);
+      return wrapAsJSValue(val);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Parses the UTF-8 encoded JSON text between the position and the limit of the direct buffer.
+   * The position of the buffer is not changed. If the byte at the limit is zero,
+   * the text is parsed in place without copy.
+   *
+   * @throws JSEvaluationException if it's not valid JSON
+   */
+  public JSValue parseJSON(ByteBuffer json) {
+    if (!json.isDirect()) {
+      throw new IllegalArgumentException("Only direct buffer is supported");
+    }
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      long val = QuickJS.parseJSONBuffer(pointer, json, json.position(), json.limit());
+      return wrapAsJSValue(val);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Converts the JSValue to a JSON string, like {@code JSON.stringify}.
+   * Returns null if it can't be serialized, like undefined or a function.
+   *
+   * @throws JSEvaluationException if it fails, like circular structure
+   */
+  @Nullable
+  public String stringify(JSValue value) {
+    return stringify(value, 0);
+  }
+
+  /**
+   * Converts the JSValue to a JSON string, like {@code JSON.stringify},
+   * indented with the count of spaces (up to 10).
+   * Returns null if it can't be serialized, like undefined or a function.
+   *
+   * @throws JSEvaluationException if it fails, like circular structure
+   */
+  @Nullable
+  public String stringify(JSValue value, int indent) {
+    if (value.jsContext != this) {
+      throw new IllegalStateException("The JSValue is not from this JSContext");
+    }
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return QuickJS.stringifyValue(pointer, value, indent);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -271,10 +600,12 @@ public class JSContext implements Closeable {
    * Creates a JavaScript undefined.
    */
   public JSUndefined createJSUndefined() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
-      long val = QuickJS.createValueUndefined(pointer);
-      return wrapAsJSValue(val).cast(JSUndefined.class);
+      return new JSUndefined(createImmediateHandle(TYPE_UNDEFINED, 0), this);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -282,10 +613,12 @@ public class JSContext implements Closeable {
    * Creates a JavaScript null.
    */
   public JSNull createJSNull() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
-      long val = QuickJS.createValueNull(pointer);
-      return wrapAsJSValue(val).cast(JSNull.class);
+      return new JSNull(createImmediateHandle(TYPE_NULL, 0), this);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -293,10 +626,12 @@ public class JSContext implements Closeable {
    * Creates a JavaScript boolean.
    */
   public JSBoolean createJSBoolean(boolean value) {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
-      long val = QuickJS.createValueBoolean(pointer, value);
-      return wrapAsJSValue(val).cast(JSBoolean.class);
+      return new JSBoolean(createImmediateHandle(TYPE_BOOLEAN, value ? 1 : 0), this, value);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -304,10 +639,12 @@ public class JSContext implements Closeable {
    * Creates a JavaScript number.
    */
   public JSNumber createJSNumber(int value) {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
-      long val = QuickJS.createValueInt(pointer, value);
-      return wrapAsJSValue(val).cast(JSNumber.class);
+      return new JSInt(createImmediateHandle(TYPE_INT, value), this, value);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -315,10 +652,17 @@ public class JSContext implements Closeable {
    * Creates a JavaScript number.
    */
   public JSNumber createJSNumber(double value) {
-    synchronized (jsRuntime) {
+    // Same as JS_NewFloat64, store it as int if possible
+    int intValue = (int) value;
+    if (Double.doubleToRawLongBits(intValue) == Double.doubleToRawLongBits(value)) {
+      return createJSNumber(intValue);
+    }
+    jsRuntime.lock();
+    try {
       checkClosed();
-      long val = QuickJS.createValueFloat64(pointer, value);
-      return wrapAsJSValue(val).cast(JSNumber.class);
+      return new JSFloat64(0, this, value);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -326,10 +670,35 @@ public class JSContext implements Closeable {
    * Creates a JavaScript string.
    */
   public JSString createJSString(String value) {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueString(pointer, value);
-      return wrapAsJSValue(val).cast(JSString.class);
+      // The contents are known, no need to describe it
+      JSString jsString = new JSString(val, this, value, value.length());
+      track(jsString);
+      return jsString;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Creates a property key for {@link JSObject#getProperty(JSAtom)} and its siblings.
+   * The same instance is returned for the same name. It stays alive until this JSContext is closed.
+   */
+  public JSAtom createJSAtom(String name) {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      JSAtom jsAtom = atoms.get(name);
+      if (jsAtom == null) {
+        jsAtom = new JSAtom(QuickJS.createAtom(pointer, name), this, name);
+        atoms.put(name, jsAtom);
+      }
+      return jsAtom;
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -337,10 +706,13 @@ public class JSContext implements Closeable {
    * Creates a JavaScript object.
    */
   public JSObject createJSObject() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueObject(pointer);
       return wrapAsJSValue(val).cast(JSObject.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -348,10 +720,13 @@ public class JSContext implements Closeable {
    * Creates a JavaScript object holding a java object.
    */
   public JSObject createJSObject(Object object) {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueJavaObject(pointer, object);
       return wrapAsJSValue(val).cast(JSObject.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -359,10 +734,13 @@ public class JSContext implements Closeable {
    * Creates a JavaScript array.
    */
   public JSArray createJSArray() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArray(pointer);
       return wrapAsJSValue(val).cast(JSArray.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -388,10 +766,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(boolean[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferZ(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -409,10 +790,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(byte[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferB(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -430,10 +814,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(char[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferC(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -451,10 +838,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(short[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferS(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -472,10 +862,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(int[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferI(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -493,10 +886,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(long[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferJ(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -514,10 +910,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(float[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferF(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -535,10 +934,13 @@ public class JSContext implements Closeable {
    */
   public JSArrayBuffer createJSArrayBuffer(double[] array, int start, int length) {
     checkArrayBounds(array.length, start, length);
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueArrayBufferD(pointer, array, start, length);
       return wrapAsJSValue(val).cast(JSArrayBuffer.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -548,10 +950,13 @@ public class JSContext implements Closeable {
   public JSFunction createJSFunction(Object instance, JavaMethod method) {
     if (instance == null) throw new NullPointerException("instance == null");
     if (method == null) throw new NullPointerException("method == null");
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueFunction(pointer, this, instance, method.name, method.getSignature(), method.returnType, method.parameterTypes, false);
       return wrapAsJSValue(val).cast(JSFunction.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -560,12 +965,15 @@ public class JSContext implements Closeable {
    */
   public JSFunction createJSFunction(JSFunctionCallback callback) {
     if (callback == null) throw new NullPointerException("callback == null");
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       String methodName = "invoke";
       String methodSign = "(Lcom/verve/shiqi/quickjs/JSContext;[Lcom/verve/shiqi/quickjs/JSValue;)Lcom/verve/shiqi/quickjs/JSValue;";
       long val = QuickJS.createValueFunction(pointer, this, callback, methodName, methodSign, JSValue.class, new Class[] { JSContext.class, JSValue[].class }, true);
       return wrapAsJSValue(val).cast(JSFunction.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
@@ -584,17 +992,21 @@ public class JSContext implements Closeable {
     }
     String className = sb.toString();
 
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long val = QuickJS.createValueFunctionS(pointer, this, className, method.name, method.getSignature(), method.returnType, method.parameterTypes);
       return wrapAsJSValue(val).cast(JSFunction.class);
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
   public JSObject createJSPromise(PromiseExecutor executor) {
     JSValue promise, resolve, reject;
 
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       checkClosed();
       long[] values = QuickJS.createValuePromise(pointer);
       if (values == null) throw new NullPointerException("result == null");
@@ -613,6 +1025,8 @@ public class JSContext implements Closeable {
       promise = wrapAsJSValue(values[0]);
       resolve = wrapAsJSValue(values[1]);
       reject = wrapAsJSValue(values[2]);
+    } finally {
+      jsRuntime.unlock();
     }
 
     executor.execute(resolve.cast(JSFunction.class), reject.cast(JSFunction.class));
@@ -620,10 +1034,8 @@ public class JSContext implements Closeable {
     return promise.cast(JSObject.class);
   }
 
-  // TODO No need to save c pointers of JSNull, JSUndefined, JSBoolean, JSNumber and JSString.
-  //  Just save their types and values.
   /**
-   * Wraps a JSValue c pointer as a Java JSValue.
+   * Wraps a JSValue native handle as a Java JSValue.
    *
    * @throws JSEvaluationException if it's JS_EXCEPTION
    */
@@ -632,81 +1044,358 @@ public class JSContext implements Closeable {
       throw new IllegalStateException("Can't wrap null pointer as JSValue");
     }
 
+    if (isImmediateHandle(value)) {
+      return wrapImmediateHandle(value);
+    }
+
+    // Tag, kind, string length and payload in one native call, float64 handles are freed by it
+    Object payload = QuickJS.describeValue(pointer, value, description);
+    return wrapAsJSValue(value, description, 0, payload);
+  }
+
+  /**
+   * Wraps a described JSValue native handle as a Java JSValue.
+   * The description is tag, kind and string length at the offset, or tag and the high and low bits
+   * of a float64, see QuickJS.describeValue.
+   * Handles of float64 values are already freed when they are described.
+   */
+  JSValue wrapAsJSValue(long value, int[] descriptions, int offset, Object payload) {
+    if (isImmediateHandle(value)) {
+      return wrapImmediateHandle(value);
+    }
+
     JSValue jsValue;
 
-    int type = QuickJS.getValueTag(value);
+    int type = descriptions[offset];
     switch (type) {
       case TYPE_SYMBOL:
         jsValue = new JSSymbol(value, this);
         break;
       case TYPE_STRING:
-        jsValue = new JSString(value, this, QuickJS.getValueString(pointer, value));
+        // Contents are fetched lazily
+        jsValue = new JSString(value, this, null, descriptions[offset + 2]);
         break;
       case TYPE_OBJECT:
-        if (QuickJS.isValueFunction(pointer, value)) {
-          jsValue = new JSFunction(value, this);
-        } else if (QuickJS.isValueArray(pointer, value)) {
-          jsValue = new JSArray(value, this);
-        } else if (QuickJS.isValueArrayBuffer(pointer, value)) {
-          jsValue = new JSArrayBuffer(value, this);
-        } else {
-          jsValue = new JSObject(value, this, QuickJS.getValueJavaObject(pointer, value));
+        switch (descriptions[offset + 1]) {
+          case KIND_FUNCTION:
+            jsValue = new JSFunction(value, this);
+            break;
+          case KIND_ARRAY:
+            jsValue = new JSArray(value, this);
+            break;
+          case KIND_ARRAY_BUFFER:
+            jsValue = new JSArrayBuffer(value, this);
+            break;
+          default:
+            jsValue = new JSObject(value, this, payload);
+            break;
         }
         break;
-      case TYPE_INT:
-        jsValue = new JSInt(value, this, QuickJS.getValueInt(value));
+      case TYPE_FLOAT64:
+        // No need to keep the c pointer, it's rebuilt from the bits in the description
+        long bits = ((long) descriptions[offset + 1] << 32) | (descriptions[offset + 2] & 0xffffffffL);
+        return new JSFloat64(0, this, Double.longBitsToDouble(bits));
+      default:
+        jsValue = new JSInternal(value, this);
         break;
+    }
+
+    track(jsValue);
+
+    return jsValue;
+  }
+
+  /**
+   * Records the JSValue to the innermost scope opened by the current thread, or registers it to cleaner.
+   */
+  private void track(JSValue jsValue) {
+    if (handleTracker != null) {
+      handleTracker.onTrack(jsValue);
+    }
+    JSValueScope scope = findScope(Thread.currentThread());
+    if (scope != null) {
+      scope.add(jsValue);
+    } else {
+      jsValue.cleanerHandle = cleaner.register(jsValue, jsValue.pointer);
+    }
+  }
+
+  /**
+   * Returns the innermost open scope of the thread, guarded by jsRuntime.
+   */
+  @Nullable
+  private JSValueScope findScope(Thread thread) {
+    JSValueScope scope = this.scope;
+    // Scopes of a confined JSRuntime are all opened by its thread, it's always the first one
+    while (scope != null && scope.thread != thread) {
+      scope = scope.parent;
+    }
+    return scope;
+  }
+
+  /**
+   * Immediate handles own no native resources, so they are never registered to cleaner.
+   */
+  private JSValue wrapImmediateHandle(long value) {
+    int type = getImmediateHandleType(value);
+    switch (type) {
+      case TYPE_INT:
+        return new JSInt(value, this, getImmediateHandleValue(value));
       case TYPE_BOOLEAN:
-        jsValue = new JSBoolean(value, this, QuickJS.getValueBoolean(value));
-        break;
+        return new JSBoolean(value, this, getImmediateHandleValue(value) != 0);
       case TYPE_NULL:
-        jsValue = new JSNull(value, this);
-        break;
+        return new JSNull(value, this);
       case TYPE_UNDEFINED:
-        jsValue = new JSUndefined(value, this);
-        break;
+        return new JSUndefined(value, this);
       case TYPE_EXCEPTION:
-        QuickJS.destroyValue(pointer, value);
         throw new JSEvaluationException(QuickJS.getException(pointer));
-      case TYPE_FLOAT64:
-        jsValue = new JSFloat64(value, this, QuickJS.getValueFloat64(value));
-        break;
       default:
-        jsValue = new JSInternal(value, this);
-        break;
+        return new JSInternal(value, this);
     }
+  }
 
-    // Register it to cleaner
-    cleaner.register(jsValue, value);
+  /**
+   * Opens a scope recording every JSValue created in this JSContext by the current thread until it's closed.
+   * All recorded JSValues are released at once when the scope is closed.
+   * JSValues created by other threads of a shared JSRuntime meanwhile are not recorded, they are left to GC.
+   * The scope must be closed by the same thread, after the inner scopes of that thread.
+   *
+   * @see JSValueScope
+   */
+  public JSValueScope openScope() {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      scope = new JSValueScope(this, scope);
+      return scope;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
 
-    return jsValue;
+  /**
+   * Returns {@code true} if a JSValueScope of it is still open.
+   */
+  boolean hasOpenScope() {
+    jsRuntime.lock();
+    try {
+      return scope != null;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Guarded by jsRuntime.
+   */
+  void closeScope(JSValueScope scope) {
+    if (scope.thread != Thread.currentThread()) {
+      throw new IllegalStateException("The JSValueScope is opened by thread " + scope.thread.getName());
+    }
+    if (findScope(scope.thread) != scope) {
+      throw new IllegalStateException("Inner JSValueScope is not closed");
+    }
+    // Scopes of other threads opened after it stay open
+    if (this.scope == scope) {
+      this.scope = scope.parent;
+    } else {
+      JSValueScope next = this.scope;
+      while (next.parent != scope) {
+        next = next.parent;
+      }
+      next.parent = scope.parent;
+    }
+    scope.release();
+  }
+
+  /**
+   * Hands a JSValue removed from its scope over to cleaner, guarded by jsRuntime.
+   */
+  void promoteJSValue(JSValue jsValue) {
+    if (jsValue.pointer != 0) {
+      jsValue.cleanerHandle = cleaner.register(jsValue, jsValue.pointer);
+    }
+  }
+
+  /**
+   * Guarded by jsRuntime.
+   */
+  void closeJSValue(JSValue jsValue) {
+    long value = jsValue.pointer;
+    if (value == 0 || isImmediateHandle(value)) return;
+    jsValue.pointer = 0;
+
+    // All values are released along with the JSContext
+    if (pointer == 0) return;
+
+    // Values in a scope are skipped by the scope once the pointer is cleared
+    cleaner.unregister(jsValue.cleanerHandle);
+    jsValue.cleanerHandle = 0;
+    QuickJS.destroyValue(pointer, value);
+  }
+
+  /**
+   * Returns the occupancy of the native boxes behind JSValue handles of this JSContext.
+   */
+  public JSHandleStats getHandleStats() {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      long[] stats = new long[4];
+      QuickJS.getHandleStats(pointer, stats);
+      return new JSHandleStats(stats[0], stats[1], stats[2], stats[3]);
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of JSValues held by Java in this JSContext,
+   * including those recorded by open scopes.
+   * Each of them pins a native value until it's closed or recycled by GC.
+   */
+  public int getHandleCount() {
+    jsRuntime.lock();
+    try {
+      int count = cleaner.size();
+      for (JSValueScope scope = this.scope; scope != null; scope = scope.parent) {
+        count += scope.getHandleCount();
+      }
+      return count;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Samples where JSValue handles of this JSContext are created, to find the code keeping them alive.
+   * One of every sampleInterval handles records its Java stack, which costs a stack walk.
+   * {@code 0} stops tracking and drops all samples.
+   *
+   * @see #getTrackedHandleSites()
+   */
+  public void setHandleTracking(int sampleInterval) {
+    if (sampleInterval < 0) {
+      throw new IllegalArgumentException("Only positive number and 0 are accepted as sample interval");
+    }
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      handleTracker = sampleInterval != 0 ? new JSHandleTracker(sampleInterval) : null;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns sampled handles still holding a native value, grouped by kind and creation site,
+   * the biggest group first. Run GC before it to only see handles which are really reachable.
+   * It's empty if handle tracking is off.
+   *
+   * @see #setHandleTracking(int)
+   */
+  public List<JSHandleSite> getTrackedHandleSites() {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      return handleTracker != null ? handleTracker.getSurvivingSites() : Collections.emptyList();
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Records the globals of this JSContext, to put them back later with {@link #restoreCheckpoint()}
+   * instead of creating a new JSContext. It replaces the previous checkpoint.
+   *
+   * It covers the global object, top-level {@code let}, {@code const} and {@code class} bindings,
+   * the built-in prototypes, and the objects held by global properties with their {@code prototype}.
+   * Objects are restored one level deep, indexed elements of arrays and the state of other objects are not.
+   */
+  public void checkpoint() {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      long newCheckpoint = QuickJS.createContextCheckpoint(pointer);
+      if (newCheckpoint == 0) {
+        throw new JSEvaluationException(QuickJS.getException(pointer));
+      }
+      if (checkpoint != 0) {
+        QuickJS.destroyContextCheckpoint(pointer, checkpoint);
+      }
+      checkpoint = newCheckpoint;
+    } finally {
+      jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Puts the globals back to the last checkpoint. Globals defined after it are deleted,
+   * changed ones and built-ins are restored, even if they are frozen.
+   * JSValues held by Java are left as they are.
+   *
+   * @throws IllegalStateException if it has no checkpoint
+   * @see #checkpoint()
+   */
+  public void restoreCheckpoint() {
+    jsRuntime.lock();
+    try {
+      checkClosed();
+      if (checkpoint == 0) {
+        throw new IllegalStateException("The JSContext has no checkpoint");
+      }
+      if (!QuickJS.restoreContextCheckpoint(pointer, checkpoint)) {
+        throw new JSEvaluationException(QuickJS.getException(pointer));
+      }
+    } finally {
+      jsRuntime.unlock();
+    }
   }
 
   int getNotRemovedJSValueCount() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       return cleaner.size();
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
   @Override
   public void close() {
-    synchronized (jsRuntime) {
+    jsRuntime.lock();
+    try {
       if (pointer != 0) {
         // Destroy all JSValue
+        for (; scope != null; scope = scope.parent) {
+          scope.release();
+        }
         cleaner.forceClean();
+        // Release all atoms
+        for (JSAtom jsAtom : atoms.values()) {
+          QuickJS.destroyAtom(pointer, jsAtom.atom);
+        }
+        atoms.clear();
+        if (checkpoint != 0) {
+          QuickJS.destroyContextCheckpoint(pointer, checkpoint);
+          checkpoint = 0;
+        }
         // Destroy self
         long contextToClose = pointer;
         pointer = 0;
+        jsRuntime.onContextClosed(this);
         QuickJS.destroyContext(contextToClose);
       }
+    } finally {
+      jsRuntime.unlock();
     }
   }
 
   private class JSValueCleaner extends NativeCleaner<JSValue> {
 
     @Override
-    public void onRemove(long pointer) {
-      QuickJS.destroyValue(JSContext.this.pointer, pointer);
+    public void onRemove(long[] pointers, int count) {
+      QuickJS.destroyValues(JSContext.this.pointer, pointers, count);
     }
   }
 }
@@ -36,15 +36,265 @@ public final class JSFunction extends JSObject {
     if (thisObj != null) checkSameJSContext(thisObj);
     for (JSValue arg : args) checkSameJSContext(arg);
 
-    long[] valueArgs = new long[args.length];
-    for (int i = 0; i < args.length; i++) {
-      valueArgs[i] = args[i].pointer;
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long ret = QuickJS.invokeValueFunction(context, pointer, thisObj, args);
+      return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
+  }
+
+  /**
+   * Calls the JavaScript function and gets its result, or what it settles to if it's a promise.
+   * The call and the pending jobs after it run like {@link JSContext#evaluateAsync(String, String, Class)}.
+   */
+  public <T> JSFuture<T> invokeAsync(@Nullable JSValue thisObj, JSValue[] args, Class<T> clazz) {
+    return invokeAsync(thisObj, args, jsContext.quickJS.getAdapter(clazz));
+  }
+
+  /**
+   * Calls the JavaScript function and gets its result, or what it settles to if it's a promise.
+   *
+   * @see #invokeAsync(JSValue, JSValue[], Class)
+   */
+  public <T> JSFuture<T> invokeAsync(@Nullable JSValue thisObj, JSValue[] args, TypeAdapter<T> adapter) {
+    return jsContext.runAsync(() -> invoke(thisObj, args), adapter);
+  }
+
+  /**
+   * Calls the JavaScript function without arguments.
+   */
+  public JSValue invoke0(@Nullable JSValue thisObj) {
+    return invokeArgs(thisObj, 0, null, null, null, null);
+  }
+
+  /**
+   * Calls the JavaScript function with one argument, no array is allocated.
+   */
+  public JSValue invoke1(@Nullable JSValue thisObj, JSValue arg0) {
+    checkSameJSContext(arg0);
+    return invokeArgs(thisObj, 1, arg0, null, null, null);
+  }
+
+  /**
+   * Calls the JavaScript function with two arguments, no array is allocated.
+   */
+  public JSValue invoke2(@Nullable JSValue thisObj, JSValue arg0, JSValue arg1) {
+    checkSameJSContext(arg0);
+    checkSameJSContext(arg1);
+    return invokeArgs(thisObj, 2, arg0, arg1, null, null);
+  }
+
+  /**
+   * Calls the JavaScript function with three arguments, no array is allocated.
+   */
+  public JSValue invoke3(@Nullable JSValue thisObj, JSValue arg0, JSValue arg1, JSValue arg2) {
+    checkSameJSContext(arg0);
+    checkSameJSContext(arg1);
+    checkSameJSContext(arg2);
+    return invokeArgs(thisObj, 3, arg0, arg1, arg2, null);
+  }
+
+  /**
+   * Calls the JavaScript function with four arguments, no array is allocated.
+   */
+  public JSValue invoke4(@Nullable JSValue thisObj, JSValue arg0, JSValue arg1, JSValue arg2, JSValue arg3) {
+    checkSameJSContext(arg0);
+    checkSameJSContext(arg1);
+    checkSameJSContext(arg2);
+    checkSameJSContext(arg3);
+    return invokeArgs(thisObj, 4, arg0, arg1, arg2, arg3);
+  }
+
+  private JSValue invokeArgs(@Nullable JSValue thisObj, int argc, JSValue arg0, JSValue arg1, JSValue arg2, JSValue arg3) {
+    if (thisObj != null) checkSameJSContext(thisObj);
 
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       long context = jsContext.checkClosed();
-      long ret = QuickJS.invokeValueFunction(context, pointer, thisObj != null ? thisObj.pointer : 0, valueArgs);
+      long ret = QuickJS.invokeValueFunctionArgs(context, pointer, thisObj, argc, arg0, arg1, arg2, arg3);
       return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function with an int argument, which is never wrapped as a JSValue.
+   */
+  public JSValue invokeWithInt(@Nullable JSValue thisObj, int arg) {
+    return invokeIntArgs(thisObj, 1, arg, 0);
+  }
+
+  /**
+   * Calls the JavaScript function with two int arguments, which are never wrapped as JSValues.
+   */
+  public JSValue invokeWithInt(@Nullable JSValue thisObj, int arg0, int arg1) {
+    return invokeIntArgs(thisObj, 2, arg0, arg1);
+  }
+
+  private JSValue invokeIntArgs(@Nullable JSValue thisObj, int argc, int arg0, int arg1) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long ret = QuickJS.invokeValueFunctionInt(context, pointer, thisObj, argc, arg0, arg1);
+      return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function with a double argument, which is never wrapped as a JSValue.
+   */
+  public JSValue invokeWithDouble(@Nullable JSValue thisObj, double arg) {
+    return invokeDoubleArgs(thisObj, 1, arg, 0);
+  }
+
+  /**
+   * Calls the JavaScript function with two double arguments, which are never wrapped as JSValues.
+   */
+  public JSValue invokeWithDouble(@Nullable JSValue thisObj, double arg0, double arg1) {
+    return invokeDoubleArgs(thisObj, 2, arg0, arg1);
+  }
+
+  private JSValue invokeDoubleArgs(@Nullable JSValue thisObj, int argc, double arg0, double arg1) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long ret = QuickJS.invokeValueFunctionDouble(context, pointer, thisObj, argc, arg0, arg1);
+      return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function with a boolean argument, which is never wrapped as a JSValue.
+   */
+  public JSValue invokeWithBoolean(@Nullable JSValue thisObj, boolean arg) {
+    return invokeBooleanArgs(thisObj, 1, arg, false);
+  }
+
+  /**
+   * Calls the JavaScript function with two boolean arguments, which are never wrapped as JSValues.
+   */
+  public JSValue invokeWithBoolean(@Nullable JSValue thisObj, boolean arg0, boolean arg1) {
+    return invokeBooleanArgs(thisObj, 2, arg0, arg1);
+  }
+
+  private JSValue invokeBooleanArgs(@Nullable JSValue thisObj, int argc, boolean arg0, boolean arg1) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long ret = QuickJS.invokeValueFunctionBoolean(context, pointer, thisObj, argc, arg0, arg1);
+      return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function with a string argument, which is never wrapped as a JSValue.
+   */
+  public JSValue invokeWithString(@Nullable JSValue thisObj, String arg) {
+    return invokeStringArgs(thisObj, 1, arg, null);
+  }
+
+  /**
+   * Calls the JavaScript function with two string arguments, which are never wrapped as JSValues.
+   */
+  public JSValue invokeWithString(@Nullable JSValue thisObj, String arg0, String arg1) {
+    return invokeStringArgs(thisObj, 2, arg0, arg1);
+  }
+
+  private JSValue invokeStringArgs(@Nullable JSValue thisObj, int argc, String arg0, String arg1) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long ret = QuickJS.invokeValueFunctionString(context, pointer, thisObj, argc, arg0, arg1);
+      return jsContext.wrapAsJSValue(ret);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function and returns the result as an int. Throws JSDataException if it's not an int number.
+   * The result is converted natively, no JSValue is created for it.
+   */
+  public int invokeForInt(@Nullable JSValue thisObj, JSValue[] args) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+    for (JSValue arg : args) checkSameJSContext(arg);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      return QuickJS.invokeValueFunctionForInt(context, pointer, thisObj, args);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function and returns the result as a double. Throws JSDataException if it's not a number.
+   * The result is converted natively, no JSValue is created for it.
+   */
+  public double invokeForDouble(@Nullable JSValue thisObj, JSValue[] args) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+    for (JSValue arg : args) checkSameJSContext(arg);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      return QuickJS.invokeValueFunctionForDouble(context, pointer, thisObj, args);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function and returns the result as a boolean. Throws JSDataException if it's not a boolean.
+   * The result is converted natively, no JSValue is created for it.
+   */
+  public boolean invokeForBoolean(@Nullable JSValue thisObj, JSValue[] args) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+    for (JSValue arg : args) checkSameJSContext(arg);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      return QuickJS.invokeValueFunctionForBoolean(context, pointer, thisObj, args);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Calls the JavaScript function and returns the result as a string, null for null and undefined. Throws JSDataException if it's not a string.
+   * The result is converted natively, no JSValue is created for it.
+   */
+  @Nullable
+  public String invokeForString(@Nullable JSValue thisObj, JSValue[] args) {
+    if (thisObj != null) checkSameJSContext(thisObj);
+    for (JSValue arg : args) checkSameJSContext(arg);
+
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      return QuickJS.invokeValueFunctionForString(context, pointer, thisObj, args);
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 }
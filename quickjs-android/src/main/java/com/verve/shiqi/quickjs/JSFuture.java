@@ -0,0 +1,158 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of a JavaScript promise, completed on the thread running the pending jobs of its JSRuntime
+ * when the promise settles. A rejection completes it with a {@link JSEvaluationException}.
+ *
+ * Don't block on it on that thread, the jobs settling the promise can't run while it's waiting.
+ *
+ * @see JSContext#evaluateAsync(String, String, Class)
+ * @see JSFunction#invokeAsync(JSValue, JSValue[], Class)
+ */
+public final class JSFuture<T> implements Future<T> {
+
+  private static final int PENDING = 0;
+  private static final int FULFILLED = 1;
+  private static final int REJECTED = 2;
+  private static final int CANCELLED = 3;
+
+  // Guarded by this
+  private int state = PENDING;
+  @Nullable
+  private T value;
+  @Nullable
+  private Throwable error;
+  @Nullable
+  private List<Runnable> listeners = new ArrayList<>(1);
+
+  JSFuture() { }
+
+  boolean set(@Nullable T value) {
+    synchronized (this) {
+      if (state != PENDING) return false;
+      this.value = value;
+      state = FULFILLED;
+    }
+    complete();
+    return true;
+  }
+
+  boolean setException(Throwable error) {
+    synchronized (this) {
+      if (state != PENDING) return false;
+      this.error = error;
+      state = REJECTED;
+    }
+    complete();
+    return true;
+  }
+
+  /**
+   * Completes it as cancelled. The JavaScript code keeps running, its result is dropped.
+   */
+  @Override
+  public boolean cancel(boolean mayInterruptIfRunning) {
+    synchronized (this) {
+      if (state != PENDING) return false;
+      state = CANCELLED;
+    }
+    complete();
+    return true;
+  }
+
+  private void complete() {
+    List<Runnable> listeners;
+    synchronized (this) {
+      listeners = this.listeners;
+      this.listeners = null;
+      notifyAll();
+    }
+    for (Runnable listener : listeners) {
+      listener.run();
+    }
+  }
+
+  /**
+   * Runs the listener on the executor once it's completed, at once if it's completed.
+   */
+  public void addListener(Runnable listener, Executor executor) {
+    Runnable task = () -> executor.execute(listener);
+    synchronized (this) {
+      if (listeners != null) {
+        listeners.add(task);
+        return;
+      }
+    }
+    task.run();
+  }
+
+  @Override
+  public synchronized boolean isCancelled() {
+    return state == CANCELLED;
+  }
+
+  @Override
+  public synchronized boolean isDone() {
+    return state != PENDING;
+  }
+
+  @Override
+  public synchronized T get() throws InterruptedException, ExecutionException {
+    while (state == PENDING) {
+      wait();
+    }
+    return report();
+  }
+
+  @Override
+  public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    while (state == PENDING) {
+      long remaining = deadline - System.nanoTime();
+      if (remaining <= 0) {
+        throw new TimeoutException();
+      }
+      TimeUnit.NANOSECONDS.timedWait(this, remaining);
+    }
+    return report();
+  }
+
+  // Guarded by this
+  private T report() throws ExecutionException {
+    if (state == CANCELLED) {
+      throw new CancellationException();
+    }
+    if (state == REJECTED) {
+      throw new ExecutionException(error);
+    }
+    return value;
+  }
+}
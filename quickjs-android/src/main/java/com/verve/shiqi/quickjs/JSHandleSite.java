@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Sampled JSValue handles still alive, created at the same place.
+ *
+ * @see JSContext#setHandleTracking(int)
+ */
+public final class JSHandleSite {
+
+  private final String kind;
+  private final StackTraceElement[] stackTrace;
+  private final int count;
+
+  JSHandleSite(String kind, StackTraceElement[] stackTrace, int count) {
+    this.kind = kind;
+    this.stackTrace = stackTrace;
+    this.count = count;
+  }
+
+  /**
+   * The JSValue class of the handles, like JSObject or JSString.
+   */
+  public String getKind() {
+    return kind;
+  }
+
+  /**
+   * The Java stack where the handles were created, starting at the caller of this library.
+   */
+  public StackTraceElement[] getStackTrace() {
+    return stackTrace.clone();
+  }
+
+  /**
+   * The number of sampled handles still alive.
+   * Multiply it by the sample interval to estimate all handles.
+   */
+  public int getCount() {
+    return count;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(count).append(" x ").append(kind);
+    for (StackTraceElement element : stackTrace) {
+      sb.append("\n\tat ").append(element);
+    }
+    return sb.toString();
+  }
+}
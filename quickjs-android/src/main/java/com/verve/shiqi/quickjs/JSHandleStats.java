@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.verve.shiqi.quickjs;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Occupancy of the native boxes behind JSValue handles of a JSContext.
+ * The boxes are carved from fixed-size slabs, which are freed when the JSContext is closed.
+ *
+ * @see JSContext#getHandleStats()
+ */
+public final class JSHandleStats {
+
+  private final long slabCount;
+  private final long capacity;
+  private final long used;
+  private final long size;
+
+  JSHandleStats(long slabCount, long capacity, long used, long size) {
+    this.slabCount = slabCount;
+    this.capacity = capacity;
+    this.used = used;
+    this.size = size;
+  }
+
+  /**
+   * The number of allocated slabs.
+   */
+  public long getSlabCount() {
+    return slabCount;
+  }
+
+  /**
+   * The number of boxes in all slabs.
+   */
+  public long getCapacity() {
+    return capacity;
+  }
+
+  /**
+   * The number of boxes holding a JSValue.
+   */
+  public long getUsed() {
+    return used;
+  }
+
+  /**
+   * The bytes of all slabs.
+   */
+  public long getSize() {
+    return size;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "JSHandleStats{slabCount=" + slabCount + ", capacity=" + capacity + ", used=" + used + ", size=" + size + "}";
+  }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Records the creation site of one of every sampleInterval JSValue handles.
+ * Guarded by jsContext.jsRuntime.
+ */
+final class JSHandleTracker {
+
+  private static final int MAX_FRAMES = 16;
+  private static final String PACKAGE_PREFIX = "com.verve.shiqi.quickjs.";
+
+  private final int sampleInterval;
+  private int countdown;
+  // Weak keys, so handles recycled by GC drop out by themselves
+  private final Map<JSValue, StackTraceElement[]> samples = new WeakHashMap<>();
+
+  JSHandleTracker(int sampleInterval) {
+    this.sampleInterval = sampleInterval;
+    this.countdown = sampleInterval;
+  }
+
+  void onTrack(JSValue jsValue) {
+    if (--countdown > 0) return;
+    countdown = sampleInterval;
+    samples.put(jsValue, captureSite());
+  }
+
+  private static StackTraceElement[] captureSite() {
+    StackTraceElement[] stackTrace = new Throwable().getStackTrace();
+    // Skip frames in this library
+    int start = 0;
+    while (start < stackTrace.length && stackTrace[start].getClassName().startsWith(PACKAGE_PREFIX)) {
+      start++;
+    }
+    if (start == stackTrace.length) {
+      // Called by this library itself
+      start = 0;
+    }
+    int end = Math.min(stackTrace.length, start + MAX_FRAMES);
+    return Arrays.copyOfRange(stackTrace, start, end);
+  }
+
+  /**
+   * Groups samples still holding a native value by kind and stack, the biggest group first.
+   */
+  List<JSHandleSite> getSurvivingSites() {
+    Map<List<Object>, int[]> counts = new HashMap<>();
+    Map<List<Object>, StackTraceElement[]> stacks = new HashMap<>();
+    for (Map.Entry<JSValue, StackTraceElement[]> entry : samples.entrySet()) {
+      JSValue jsValue = entry.getKey();
+      // Closed values keep no native value
+      if (jsValue == null || jsValue.pointer == 0) continue;
+
+      List<Object> key = new ArrayList<>(entry.getValue().length + 1);
+      key.add(jsValue.getClass().getSimpleName());
+      Collections.addAll(key, (Object[]) entry.getValue());
+
+      int[] count = counts.get(key);
+      if (count == null) {
+        count = new int[1];
+        counts.put(key, count);
+        stacks.put(key, entry.getValue());
+      }
+      count[0]++;
+    }
+
+    List<JSHandleSite> sites = new ArrayList<>(counts.size());
+    for (Map.Entry<List<Object>, int[]> entry : counts.entrySet()) {
+      List<Object> key = entry.getKey();
+      sites.add(new JSHandleSite((String) key.get(0), stacks.get(key), entry.getValue()[0]));
+    }
+    Collections.sort(sites, (o1, o2) -> Integer.compare(o2.getCount(), o1.getCount()));
+    return sites;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A snapshot of the memory heap of a JSRuntime, computed by {@code JS_ComputeMemoryUsage},
+ * along with the JSValue handles held by its open JSContexts.
+ *
+ * @see JSRuntime#getMemoryUsage()
+ */
+public final class JSMemoryUsage {
+
+  // Indexes in the array filled by QuickJS.getRuntimeMemoryUsage, see quickjs-jni.c
+  static final int MALLOC_SIZE = 0;
+  static final int MALLOC_LIMIT = 1;
+  static final int MEMORY_USED_SIZE = 2;
+  static final int MALLOC_COUNT = 3;
+  static final int MEMORY_USED_COUNT = 4;
+  static final int ATOM_COUNT = 5;
+  static final int ATOM_SIZE = 6;
+  static final int STRING_COUNT = 7;
+  static final int STRING_SIZE = 8;
+  static final int OBJECT_COUNT = 9;
+  static final int OBJECT_SIZE = 10;
+  static final int PROPERTY_COUNT = 11;
+  static final int PROPERTY_SIZE = 12;
+  static final int SHAPE_COUNT = 13;
+  static final int SHAPE_SIZE = 14;
+  static final int FUNCTION_COUNT = 15;
+  static final int FUNCTION_SIZE = 16;
+  static final int FUNCTION_CODE_SIZE = 17;
+  static final int PC2LINE_COUNT = 18;
+  static final int PC2LINE_SIZE = 19;
+  static final int PC2COLUMN_COUNT = 20;
+  static final int PC2COLUMN_SIZE = 21;
+  static final int C_FUNCTION_COUNT = 22;
+  static final int ARRAY_COUNT = 23;
+  static final int FAST_ARRAY_COUNT = 24;
+  static final int FAST_ARRAY_ELEMENTS = 25;
+  static final int BINARY_OBJECT_COUNT = 26;
+  static final int BINARY_OBJECT_SIZE = 27;
+  static final int SIZE = 28;
+
+  private final long[] values;
+  private final int contextCount;
+  private final int handleCount;
+
+  JSMemoryUsage(long[] values, int contextCount, int handleCount) {
+    this.values = values;
+    this.contextCount = contextCount;
+    this.handleCount = handleCount;
+  }
+
+  /**
+   * Bytes allocated by the runtime allocator.
+   */
+  public long getMallocSize() {
+    return values[MALLOC_SIZE];
+  }
+
+  /**
+   * The malloc limit, {@code -1} for no limit.
+   */
+  public long getMallocLimit() {
+    return values[MALLOC_LIMIT];
+  }
+
+  /**
+   * Estimated bytes used by the objects in the heap.
+   */
+  public long getMemoryUsedSize() {
+    return values[MEMORY_USED_SIZE];
+  }
+
+  public long getMallocCount() {
+    return values[MALLOC_COUNT];
+  }
+
+  public long getMemoryUsedCount() {
+    return values[MEMORY_USED_COUNT];
+  }
+
+  public long getAtomCount() {
+    return values[ATOM_COUNT];
+  }
+
+  public long getAtomSize() {
+    return values[ATOM_SIZE];
+  }
+
+  public long getStringCount() {
+    return values[STRING_COUNT];
+  }
+
+  public long getStringSize() {
+    return values[STRING_SIZE];
+  }
+
+  public long getObjectCount() {
+    return values[OBJECT_COUNT];
+  }
+
+  public long getObjectSize() {
+    return values[OBJECT_SIZE];
+  }
+
+  public long getPropertyCount() {
+    return values[PROPERTY_COUNT];
+  }
+
+  public long getPropertySize() {
+    return values[PROPERTY_SIZE];
+  }
+
+  public long getShapeCount() {
+    return values[SHAPE_COUNT];
+  }
+
+  public long getShapeSize() {
+    return values[SHAPE_SIZE];
+  }
+
+  /**
+   * The number of bytecode functions.
+   */
+  public long getFunctionCount() {
+    return values[FUNCTION_COUNT];
+  }
+
+  public long getFunctionSize() {
+    return values[FUNCTION_SIZE];
+  }
+
+  public long getFunctionCodeSize() {
+    return values[FUNCTION_CODE_SIZE];
+  }
+
+  /**
+   * The number of line number tables of bytecode functions.
+   */
+  public long getPc2lineCount() {
+    return values[PC2LINE_COUNT];
+  }
+
+  public long getPc2lineSize() {
+    return values[PC2LINE_SIZE];
+  }
+
+  /**
+   * The number of column number tables of bytecode functions.
+   */
+  public long getPc2columnCount() {
+    return values[PC2COLUMN_COUNT];
+  }
+
+  public long getPc2columnSize() {
+    return values[PC2COLUMN_SIZE];
+  }
+
+  /**
+   * The number of native functions.
+   */
+  public long getCFunctionCount() {
+    return values[C_FUNCTION_COUNT];
+  }
+
+  public long getArrayCount() {
+    return values[ARRAY_COUNT];
+  }
+
+  public long getFastArrayCount() {
+    return values[FAST_ARRAY_COUNT];
+  }
+
+  public long getFastArrayElements() {
+    return values[FAST_ARRAY_ELEMENTS];
+  }
+
+  /**
+   * The number of array buffers and typed arrays.
+   */
+  public long getBinaryObjectCount() {
+    return values[BINARY_OBJECT_COUNT];
+  }
+
+  public long getBinaryObjectSize() {
+    return values[BINARY_OBJECT_SIZE];
+  }
+
+  /**
+   * The number of open JSContexts of the JSRuntime.
+   */
+  public int getContextCount() {
+    return contextCount;
+  }
+
+  /**
+   * The number of JSValues held by Java in all open JSContexts,
+   * see {@link JSContext#getHandleCount()}.
+   */
+  public int getHandleCount() {
+    return handleCount;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "JSMemoryUsage{" +
+        "mallocSize=" + getMallocSize() +
+        ", mallocLimit=" + getMallocLimit() +
+        ", memoryUsedSize=" + getMemoryUsedSize() +
+        ", atomCount=" + getAtomCount() +
+        ", stringCount=" + getStringCount() +
+        ", objectCount=" + getObjectCount() +
+        ", shapeCount=" + getShapeCount() +
+        ", functionCount=" + getFunctionCount() +
+        ", contextCount=" + contextCount +
+        ", handleCount=" + handleCount +
+        "}";
+  }
+}
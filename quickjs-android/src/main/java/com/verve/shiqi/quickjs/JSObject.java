@@ -45,10 +45,13 @@ public class JSObject extends JSValue {
    * @throws JSEvaluationException if the cannot read property of this JSValue.
    */
   public JSValue getProperty(int index) {
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       long context = jsContext.checkClosed();
       long property = QuickJS.getValueProperty(context, pointer, index);
       return jsContext.wrapAsJSValue(property);
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
@@ -58,10 +61,57 @@ public class JSObject extends JSValue {
    * @throws JSEvaluationException if the cannot read property of this JSValue.
    */
   public JSValue getProperty(String name) {
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       long context = jsContext.checkClosed();
       long property = QuickJS.getValueProperty(context, pointer, name);
       return jsContext.wrapAsJSValue(property);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns the property as a JSValue.
+   *
+   * @throws JSEvaluationException if the cannot read property of this JSValue.
+   */
+  public JSValue getProperty(JSAtom atom) {
+    checkSameJSContext(atom);
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long property = QuickJS.getValuePropertyAtom(context, pointer, atom.atom);
+      return jsContext.wrapAsJSValue(property);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns the properties as JSValues, in the same order as the names.
+   * All of them are read in one native call.
+   *
+   * @throws JSEvaluationException if the cannot read any property of this JSValue.
+   */
+  public JSValue[] getProperties(String[] names) {
+    int count = names.length;
+    int[] descriptions = new int[count * JSContext.DESCRIPTION_SIZE];
+    Object[] payloads = new Object[count];
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      long[] properties = QuickJS.getValueProperties(context, pointer, names, descriptions, payloads);
+      if (properties == null) {
+        throw new JSEvaluationException(QuickJS.getException(context));
+      }
+      JSValue[] result = new JSValue[count];
+      for (int i = 0; i < count; i++) {
+        result[i] = jsContext.wrapAsJSValue(properties[i], descriptions, i * JSContext.DESCRIPTION_SIZE, payloads[i]);
+      }
+      return result;
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
@@ -70,11 +120,14 @@ public class JSObject extends JSValue {
    */
   public void setProperty(int index, JSValue jsValue) {
     checkSameJSContext(jsValue);
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       jsContext.checkClosed();
-      if (!QuickJS.setValueProperty(jsContext.pointer, pointer, index, jsValue.pointer)) {
+      if (!QuickJS.setValueProperty(jsContext.pointer, pointer, index, jsValue)) {
         throw new JSEvaluationException(QuickJS.getException(jsContext.pointer));
       }
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
@@ -83,11 +136,51 @@ public class JSObject extends JSValue {
    */
   public void setProperty(String name, JSValue jsValue) {
     checkSameJSContext(jsValue);
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       jsContext.checkClosed();
-      if (!QuickJS.setValueProperty(jsContext.pointer, pointer, name, jsValue.pointer)) {
+      if (!QuickJS.setValueProperty(jsContext.pointer, pointer, name, jsValue)) {
         throw new JSEvaluationException(QuickJS.getException(jsContext.pointer));
       }
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Sets JSValue as a property.
+   */
+  public void setProperty(JSAtom atom, JSValue jsValue) {
+    checkSameJSContext(atom);
+    checkSameJSContext(jsValue);
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      if (!QuickJS.setValuePropertyAtom(context, pointer, atom.atom, jsValue)) {
+        throw new JSEvaluationException(QuickJS.getException(context));
+      }
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Sets JSValues as properties, {@code values[i]} to {@code names[i]}.
+   * All of them are set in one native call. It stops at the first failure.
+   */
+  public void setProperties(String[] names, JSValue[] values) {
+    if (names.length != values.length) {
+      throw new IllegalArgumentException("Names and values have different lengths: " + names.length + " and " + values.length);
+    }
+    for (JSValue value : values) checkSameJSContext(value);
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      if (!QuickJS.setValueProperties(context, pointer, names, values)) {
+        throw new JSEvaluationException(QuickJS.getException(context));
+      }
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
@@ -98,11 +191,14 @@ public class JSObject extends JSValue {
     if ((flags & (~PROP_FLAG_MASK)) != 0) {
       throw new IllegalArgumentException("Invalid flags: " + flags);
     }
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       jsContext.checkClosed();
-      if (!QuickJS.defineValueProperty(jsContext.pointer, pointer, index, jsValue.pointer, flags)) {
+      if (!QuickJS.defineValueProperty(jsContext.pointer, pointer, index, jsValue, flags)) {
         throw new JSEvaluationException(QuickJS.getException(jsContext.pointer));
       }
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 
@@ -113,11 +209,34 @@ public class JSObject extends JSValue {
     if ((flags & (~PROP_FLAG_MASK)) != 0) {
       throw new IllegalArgumentException("Invalid flags: " + flags);
     }
-    synchronized (jsContext.jsRuntime) {
+    jsContext.jsRuntime.lock();
+    try {
       jsContext.checkClosed();
-      if (!QuickJS.defineValueProperty(jsContext.pointer, pointer, name, jsValue.pointer, flags)) {
+      if (!QuickJS.defineValueProperty(jsContext.pointer, pointer, name, jsValue, flags)) {
         throw new JSEvaluationException(QuickJS.getException(jsContext.pointer));
       }
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Defines a new property directly on an object, or modifies an existing property on this object.
+   */
+  public void defineProperty(JSAtom atom, JSValue jsValue, int flags) {
+    if ((flags & (~PROP_FLAG_MASK)) != 0) {
+      throw new IllegalArgumentException("Invalid flags: " + flags);
+    }
+    checkSameJSContext(atom);
+    checkSameJSContext(jsValue);
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      if (!QuickJS.defineValuePropertyAtom(context, pointer, atom.atom, jsValue, flags)) {
+        throw new JSEvaluationException(QuickJS.getException(context));
+      }
+    } finally {
+      jsContext.jsRuntime.unlock();
     }
   }
 }
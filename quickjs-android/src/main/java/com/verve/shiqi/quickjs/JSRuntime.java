@@ -17,26 +17,86 @@
 
 package com.verve.shiqi.quickjs;
 
+import android.util.Log;
+
 import androidx.annotation.Nullable;
 
 import java.io.Closeable;
-
-// TODO Check all JSContext closed when closing JSRuntime
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * JSRuntime is a JavaScript runtime with a memory heap.
  * It can't evaluate JavaScript script.
  *
+ * A JSRuntime may be confined to one thread, then it and its JSContexts and JSValues
+ * must only be used on that thread. Other threads hand work to a dedicated thread
+ * with {@link #submit(Callable)}.
+ *
  * @see JSContext
  */
 public class JSRuntime implements Closeable {
 
+  /**
+   * Runs the cycle collector and returns free pages to the system.
+   */
+  public static final int TRIM_LEVEL_GC = 0;
+
+  /**
+   * {@link #TRIM_LEVEL_GC}, and shrinks the shape and atom hash tables.
+   */
+  public static final int TRIM_LEVEL_TABLES = 1;
+
+  /**
+   * {@link #TRIM_LEVEL_TABLES}, and drops the inline caches of all functions,
+   * releasing the shapes and prototypes they keep alive. Property accesses are slower
+   * until the caches are warmed up again.
+   */
+  public static final int TRIM_LEVEL_CACHES = 2;
+
+  private static final String TAG = "QuickJs JSRuntime";
+
   private long pointer;
   private final QuickJS quickJS;
+  // Guards a JSRuntime used by any thread, null for a confined one
+  @Nullable
+  private final ReentrantLock lock;
+  // Open JSContexts, guarded by lock
+  private final List<JSContext> contexts = new ArrayList<>();
+
+  // The only thread allowed to use it, null for any thread
+  @Nullable
+  private final Thread ownerThread;
+  // The owner thread if it's dedicated to this JSRuntime
+  @Nullable
+  private final JSRuntimeThread thread;
+  // Whether pending jobs are being run, guarded by lock
+  private boolean runningJobs;
+  // Nested lock() calls of the holder, guarded by lock
+  private int lockDepth;
+  // Unsettled JSFutures which need pending jobs to run without a dedicated thread
+  private final AtomicInteger waitingFutures = new AtomicInteger();
+  // Settings to put back when it's reused, guarded by lock
+  private int mallocLimit = -1;
+  @Nullable
+  private InterruptHandler interruptHandler;
+  @Nullable
+  private GCListener gcListener;
 
-  JSRuntime(long pointer, QuickJS quickJS) {
+  JSRuntime(long pointer, QuickJS quickJS, @Nullable Thread ownerThread) {
     this.pointer = pointer;
     this.quickJS = quickJS;
+    this.ownerThread = ownerThread;
+    this.lock = ownerThread == null ? new ReentrantLock() : null;
+    this.thread = ownerThread instanceof JSRuntimeThread ? (JSRuntimeThread) ownerThread : null;
   }
 
   private void checkClosed() {
@@ -45,19 +105,77 @@ public class JSRuntime implements Closeable {
     }
   }
 
+  /**
+   * Locks this JSRuntime and its JSContexts and JSValues for the calling thread, reentrant.
+   * A confined JSRuntime is never locked, its owner thread only pays for the thread check.
+   *
+   * @throws IllegalStateException if it's confined to another thread
+   */
+  void lock() {
+    if (lock != null) {
+      lock.lock();
+    } else if (ownerThread != Thread.currentThread() && pointer != 0) {
+      throw new IllegalStateException("The JSRuntime is confined to thread " + ownerThread.getName());
+    }
+    lockDepth++;
+  }
+
+  /**
+   * Unlocks this JSRuntime. The outermost call runs pending jobs if a JSFuture is waiting for them,
+   * so a promise settled by any call from Java completes its JSFuture when the call returns.
+   */
+  void unlock() {
+    boolean drain = --lockDepth == 0 && waitingFutures.get() > 0 && !runningJobs && pointer != 0;
+    unlockWithoutJobs();
+    if (drain) {
+      runPendingJobs();
+    }
+  }
+
+  private void unlockWithoutJobs() {
+    if (lock != null) {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Keeps pending jobs running after calls from Java until the JSFuture is done.
+   * A JSRuntime with a dedicated thread runs them after each task anyway.
+   */
+  void waitForJobs(JSFuture<?> future) {
+    if (thread != null) return;
+    waitingFutures.incrementAndGet();
+    future.addListener(waitingFutures::decrementAndGet, Runnable::run);
+  }
+
   /**
    * Set the malloc limit for this JSRuntime.
    * Only positive number and {@code -1} are accepted.
    * {@code -1} for no limit.
    */
-  public synchronized void setMallocLimit(int mallocLimit) {
-    checkClosed();
+  public void setMallocLimit(int mallocLimit) {
+    lock();
+    try {
+      checkClosed();
+
+      if (mallocLimit == 0 || mallocLimit < -1) {
+        throw new IllegalArgumentException("Only positive number and -1 are accepted as malloc limit");
+      }
 
-    if (mallocLimit == 0 || mallocLimit < -1) {
-      throw new IllegalArgumentException("Only positive number and -1 are accepted as malloc limit");
+      QuickJS.setRuntimeMallocLimit(pointer, mallocLimit);
+      this.mallocLimit = mallocLimit;
+    } finally {
+      unlock();
     }
+  }
 
-    QuickJS.setRuntimeMallocLimit(pointer, mallocLimit);
+  int getMallocLimit() {
+    lock();
+    try {
+      return mallocLimit;
+    } finally {
+      unlock();
+    }
   }
 
   /**
@@ -65,43 +183,349 @@ public class JSRuntime implements Closeable {
    * Only positive number and {@code 0} are accepted.
    * {@code 0} for no stack size check.
    */
-  public synchronized void setMaxStackSize(int stackSize) {
-    checkClosed();
+  public void setMaxStackSize(int stackSize) {
+    lock();
+    try {
+      checkClosed();
 
-    if (stackSize < 0) {
-      throw new IllegalArgumentException("Only positive number and 0 are accepted as max stack size");
+      if (stackSize < 0) {
+        throw new IllegalArgumentException("Only positive number and 0 are accepted as max stack size");
+      }
+
+      QuickJS.setRuntimeMaxStackSize(pointer, stackSize);
+    } finally {
+      unlock();
     }
+  }
 
-    QuickJS.setRuntimeMaxStackSize(pointer, stackSize);
+  /**
+   * Moves the stack size check to the stack of the calling thread.
+   * Required before this JSRuntime runs JavaScript on another thread.
+   */
+  void updateStackTop() {
+    lock();
+    try {
+      checkClosed();
+      QuickJS.updateRuntimeStackTop(pointer);
+    } finally {
+      unlock();
+    }
   }
 
   /**
    * Set the InterruptHandler for this JSRuntime.
    * {@link InterruptHandler#onInterrupt()} is called every 10000 js instructions.
    */
-  public synchronized void setInterruptHandler(@Nullable InterruptHandler interruptHandler) {
-    checkClosed();
-    QuickJS.setRuntimeInterruptHandler(pointer, interruptHandler);
+  public void setInterruptHandler(@Nullable InterruptHandler interruptHandler) {
+    lock();
+    try {
+      checkClosed();
+      QuickJS.setRuntimeInterruptHandler(pointer, interruptHandler);
+      this.interruptHandler = interruptHandler;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Nullable
+  InterruptHandler getInterruptHandler() {
+    lock();
+    try {
+      return interruptHandler;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Runs the cycle collector now, e.g. in an idle window.
+   * Objects without cycles are freed as soon as they are unreferenced, they don't wait for it.
+   */
+  public void runGC() {
+    lock();
+    try {
+      checkClosed();
+      QuickJS.runRuntimeGC(pointer);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Sheds memory of this JSRuntime without closing it, e.g. on
+   * {@code ComponentCallbacks2.onTrimMemory()}.
+   *
+   * @param level {@link #TRIM_LEVEL_GC}, {@link #TRIM_LEVEL_TABLES} or {@link #TRIM_LEVEL_CACHES}
+   * @return the number of bytes reclaimed from the heap
+   */
+  public long trimMemory(int level) {
+    lock();
+    try {
+      checkClosed();
+
+      if (level < TRIM_LEVEL_GC || level > TRIM_LEVEL_CACHES) {
+        throw new IllegalArgumentException("Invalid trim level: " + level);
+      }
+
+      return QuickJS.trimRuntimeMemory(pointer, level);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Set the heap size in bytes at which the cycle collector runs automatically.
+   * After each automatic run, it's reset to 1.5 times the heap size.
+   * {@code -1} to disable automatic runs.
+   */
+  public void setGCThreshold(long gcThreshold) {
+    lock();
+    try {
+      checkClosed();
+
+      if (gcThreshold <= 0 && gcThreshold != -1) {
+        throw new IllegalArgumentException("Only positive number and -1 are accepted as GC threshold");
+      }
+
+      QuickJS.setRuntimeGCThreshold(pointer, gcThreshold);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Returns the heap size in bytes at which the cycle collector runs automatically,
+   * {@code -1} if automatic runs are disabled.
+   */
+  public long getGCThreshold() {
+    lock();
+    try {
+      checkClosed();
+      return QuickJS.getRuntimeGCThreshold(pointer);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Set the GCListener for this JSRuntime.
+   * {@link GCListener#onGC(long, long, long, long)} is called after each run of the cycle collector.
+   */
+  public void setGCListener(@Nullable GCListener gcListener) {
+    lock();
+    try {
+      checkClosed();
+      QuickJS.setRuntimeGCListener(pointer, gcListener);
+      this.gcListener = gcListener;
+    } finally {
+      unlock();
+    }
+  }
+
+  @Nullable
+  GCListener getGCListener() {
+    lock();
+    try {
+      return gcListener;
+    } finally {
+      unlock();
+    }
   }
 
   /**
    * Creates a JSContext with the memory heap of this JSRuntime.
    */
-  public synchronized JSContext createJSContext() {
-    checkClosed();
-    long context = QuickJS.createContext(pointer);
-    if (context == 0) {
-      throw new IllegalStateException("Cannot create JSContext instance");
+  public JSContext createJSContext() {
+    lock();
+    try {
+      checkClosed();
+      long context = QuickJS.createContext(pointer);
+      if (context == 0) {
+        throw new IllegalStateException("Cannot create JSContext instance");
+      }
+      JSContext jsContext = new JSContext(context, quickJS, this);
+      contexts.add(jsContext);
+      return jsContext;
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Called by JSContext when it's closed, with this JSRuntime locked.
+   */
+  void onContextClosed(JSContext jsContext) {
+    contexts.remove(jsContext);
+  }
+
+  /**
+   * Returns a snapshot of the memory heap of this JSRuntime.
+   * It walks the whole heap, don't call it too often.
+   */
+  public JSMemoryUsage getMemoryUsage() {
+    lock();
+    try {
+      checkClosed();
+      long[] values = new long[JSMemoryUsage.SIZE];
+      QuickJS.getRuntimeMemoryUsage(pointer, values);
+      int handleCount = 0;
+      for (JSContext jsContext : contexts) {
+        handleCount += jsContext.getHandleCount();
+      }
+      return new JSMemoryUsage(values, contexts.size(), handleCount);
+    } finally {
+      unlock();
+    }
+  }
+
+  /**
+   * Returns {@code true} if this JSRuntime is confined to a dedicated thread.
+   *
+   * @see QuickJS#createConfinedJSRuntime(boolean)
+   */
+  public boolean hasDedicatedThread() {
+    return thread != null;
+  }
+
+  /**
+   * Runs pending jobs, e.g. promise reactions, until none is left.
+   * Jobs which throw are logged and skipped, nobody is waiting for them.
+   * It does nothing if it's called by a job.
+   */
+  void runPendingJobs() {
+    lock();
+    try {
+      if (runningJobs) {
+        return;
+      }
+      runningJobs = true;
+    } finally {
+      unlock();
+    }
+    try {
+      while (true) {
+        JSContext jsContext;
+        lock();
+        try {
+          if (pointer == 0 || contexts.isEmpty()) {
+            return;
+          }
+          // Jobs are queued in the JSRuntime, any JSContext runs them,
+          // exceptions are taken from the JSContext of the failing job
+          jsContext = contexts.get(0);
+        } finally {
+          unlock();
+        }
+        try {
+          // Returns when the queue is empty, or a job throws
+          jsContext.executePendingJobs(Integer.MAX_VALUE);
+          return;
+        } catch (JSEvaluationException e) {
+          Log.w(TAG, "runPendingJobs: " + e.getMessage());
+        }
+      }
+    } finally {
+      lock();
+      try {
+        runningJobs = false;
+      } finally {
+        // Not to run them again
+        lockDepth--;
+        unlockWithoutJobs();
+      }
     }
-    return new JSContext(context, quickJS, this);
   }
 
+  /**
+   * Runs the task on the dedicated thread of this JSRuntime, in the order of submission.
+   * Pending jobs queued by the task run after it, before the next task.
+   * Tasks submitted on the dedicated thread itself run at once.
+   * Tasks still queued when this JSRuntime is closed are cancelled.
+   *
+   * @throws IllegalStateException if this JSRuntime has no dedicated thread
+   * @see QuickJS#createConfinedJSRuntime(boolean)
+   */
+  public <T> Future<T> submit(Callable<T> task) {
+    return submit(new FutureTask<>(() -> {
+      try {
+        return task.call();
+      } finally {
+        runPendingJobs();
+      }
+    }));
+  }
+
+  /**
+   * Runs the task on the dedicated thread of this JSRuntime, like {@link #submit(Callable)}.
+   */
+  public Future<?> submit(Runnable task) {
+    return submit(Executors.callable(task));
+  }
+
+  private <T> Future<T> submit(FutureTask<T> future) {
+    if (thread == null) {
+      throw new IllegalStateException("The JSRuntime has no dedicated thread");
+    }
+    if (Thread.currentThread() == thread) {
+      future.run();
+      return future;
+    }
+    return thread.post(future);
+  }
+
+  /**
+   * Closes this JSRuntime. A JSRuntime with a dedicated thread is closed on that thread,
+   * this method waits for it, and the thread ends after it.
+   */
   @Override
-  public synchronized void close() {
-    if (pointer != 0) {
-      long runtimeToClose = pointer;
-      pointer = 0;
-      QuickJS.destroyRuntime(runtimeToClose);
+  public void close() {
+    if (thread != null && Thread.currentThread() != thread) {
+      try {
+        getUninterruptibly(submit((Runnable) this::close));
+      } catch (CancellationException e) {
+        // The dedicated thread is gone, it's closed
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+        if (cause instanceof Error) throw (Error) cause;
+        throw new IllegalStateException(cause);
+      }
+      return;
+    }
+
+    lock();
+    try {
+      if (pointer != 0) {
+        // JSContexts left open would free their JSValues into a destroyed heap
+        for (int i = contexts.size() - 1; i >= 0; i--) {
+          contexts.get(i).close();
+        }
+        long runtimeToClose = pointer;
+        pointer = 0;
+        QuickJS.destroyRuntime(runtimeToClose);
+        if (thread != null) {
+          thread.quit();
+        }
+      }
+    } finally {
+      unlock();
+    }
+  }
+
+  static <T> T getUninterruptibly(Future<T> future) throws ExecutionException {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return future.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
     }
   }
 
@@ -111,4 +535,17 @@ public class JSRuntime implements Closeable {
      */
     boolean onInterrupt();
   }
+
+  public interface GCListener {
+    /**
+     * Called on the thread running the cycle collector, with this JSRuntime locked.
+     * It must not call into JavaScript.
+     *
+     * @param bytesBefore the heap size before the run
+     * @param bytesAfter the heap size after the run
+     * @param objectsFreed the number of objects in cycles freed by the run
+     * @param pauseNanos the duration of the run
+     */
+    void onGC(long bytesBefore, long bytesAfter, long objectsFreed, long pauseNanos);
+  }
 }
@@ -0,0 +1,489 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.verve.shiqi.quickjs;
+
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSRuntimePool keeps JSRuntimes with a warmed JSContext, which has run the init script,
+ * so scripts can run on many threads without paying for creating them each time.
+ *
+ * <pre>
+ * try (JSRuntimePool.Lease lease = pool.borrow()) {
+ *   return lease.getContext().evaluate("render()", "render.js", String.class);
+ * }
+ * </pre>
+ *
+ * A borrowed JSRuntime must only be used by the borrowing thread.
+ * It's reset when returned: jobs left by the borrower run, the interrupt handler, GC listener,
+ * malloc limit and GC threshold, and the globals of its JSContext are put back to those after warming up,
+ * see {@link JSContext#restoreCheckpoint()}. A JSRuntime left with an open JSValueScope,
+ * or with jobs which don't end, is dropped.
+ */
+public final class JSRuntimePool implements Closeable {
+
+  // Budget for the jobs left by a borrower, it's dropped if they don't end in it
+  private static final int MAX_RESET_JOBS = 10000;
+  private static final long RESET_JOBS_TIMEOUT_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+  private final QuickJS quickJS;
+  private final int coreSize;
+  private final int maxSize;
+  private final long idleTimeoutNanos;
+  @Nullable
+  private final Initializer initializer;
+  @Nullable
+  private final byte[] initBytecode;
+  @Nullable
+  private final String initScript;
+  @Nullable
+  private final String initScriptName;
+
+  // Guarded by this
+  // The most recently returned first, so the longest idle ones are evicted from the tail
+  private final ArrayDeque<Entry> idleEntries = new ArrayDeque<>();
+  // Entries created, being created, borrowed or idle
+  private int size;
+  private boolean closed;
+  private long hitCount;
+  private long missCount;
+  private long waitCount;
+  private long waitNanos;
+  private long evictionCount;
+
+  private JSRuntimePool(Builder builder) {
+    this.quickJS = builder.quickJS;
+    this.coreSize = builder.coreSize;
+    this.maxSize = builder.maxSize;
+    this.idleTimeoutNanos = builder.idleTimeoutNanos;
+    this.initializer = builder.initializer;
+    this.initBytecode = builder.initBytecode;
+    this.initScript = builder.initScript;
+    this.initScriptName = builder.initScriptName;
+
+    try {
+      for (int i = 0; i < coreSize; i++) {
+        Entry entry = createEntry();
+        entry.idleSince = System.nanoTime();
+        idleEntries.addFirst(entry);
+        size++;
+      }
+    } catch (RuntimeException | Error e) {
+      close();
+      throw e;
+    }
+  }
+
+  private void checkClosed() {
+    if (closed) {
+      throw new IllegalStateException("The JSRuntimePool is closed");
+    }
+  }
+
+  private Entry createEntry() {
+    JSRuntime jsRuntime = quickJS.createJSRuntime();
+    try {
+      return new Entry(jsRuntime, createContext(jsRuntime));
+    } catch (RuntimeException | Error e) {
+      jsRuntime.close();
+      throw e;
+    }
+  }
+
+  private JSContext createContext(JSRuntime jsRuntime) {
+    JSContext jsContext = jsRuntime.createJSContext();
+    try {
+      if (initializer != null) {
+        initializer.onInit(jsRuntime, jsContext);
+      }
+      if (initBytecode != null) {
+        jsContext.evaluateBytecode(initBytecode);
+      }
+      if (initScript != null) {
+        jsContext.evaluate(initScript, initScriptName);
+      }
+      jsContext.checkpoint();
+      return jsContext;
+    } catch (RuntimeException | Error e) {
+      jsContext.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Borrows a JSRuntime, waits if all of them are borrowed and the pool is at its max size.
+   *
+   * @throws IllegalStateException if the pool is closed
+   */
+  public Lease borrow() throws InterruptedException {
+    return borrowInternal(-1);
+  }
+
+  /**
+   * Borrows a JSRuntime, waits at most the timeout if all of them are borrowed
+   * and the pool is at its max size.
+   *
+   * @return the lease, or {@code null} if it times out
+   * @throws IllegalStateException if the pool is closed
+   */
+  @Nullable
+  public Lease borrow(long timeout, TimeUnit unit) throws InterruptedException {
+    return borrowInternal(Math.max(0, unit.toNanos(timeout)));
+  }
+
+  @Nullable
+  private Lease borrowInternal(long timeoutNanos) throws InterruptedException {
+    evictIdle();
+
+    Entry entry;
+    synchronized (this) {
+      checkClosed();
+      entry = idleEntries.pollFirst();
+      if (entry != null) {
+        hitCount++;
+      } else if (size < maxSize) {
+        missCount++;
+      } else {
+        waitCount++;
+        long start = System.nanoTime();
+        try {
+          while ((entry = idleEntries.pollFirst()) == null && size >= maxSize) {
+            long elapsed = System.nanoTime() - start;
+            if (timeoutNanos < 0) {
+              wait();
+            } else if (elapsed < timeoutNanos) {
+              TimeUnit.NANOSECONDS.timedWait(this, timeoutNanos - elapsed);
+            } else {
+              break;
+            }
+            checkClosed();
+          }
+        } finally {
+          waitNanos += System.nanoTime() - start;
+        }
+        if (entry == null) {
+          if (size >= maxSize) return null;
+          // Another JSRuntime is dropped
+          missCount++;
+        }
+      }
+      if (entry == null) {
+        // Reserved, created out of the lock
+        size++;
+      }
+    }
+
+    if (entry == null) {
+      try {
+        entry = createEntry();
+      } catch (RuntimeException | Error e) {
+        synchronized (this) {
+          size--;
+          notify();
+        }
+        throw e;
+      }
+    }
+
+    // It may run on another thread last time
+    entry.jsRuntime.updateStackTop();
+    return new Lease(entry);
+  }
+
+  private void giveBack(Entry entry) {
+    boolean reusable = false;
+    if (!isClosed()) {
+      try {
+        reset(entry);
+        reusable = true;
+      } catch (RuntimeException | Error e) {
+        // Broken by the borrower, drop it
+      }
+    }
+
+    synchronized (this) {
+      if (reusable && !closed) {
+        entry.idleSince = System.nanoTime();
+        idleEntries.addFirst(entry);
+        notify();
+        return;
+      }
+      size--;
+      notify();
+    }
+    entry.close();
+  }
+
+  /**
+   * Puts the JSRuntime and its JSContext back to the state after warming up:
+   * runs the jobs left by the borrower, then restores the settings and the globals.
+   *
+   * @throws IllegalStateException if the borrower left a scope open or jobs which don't end
+   */
+  private void reset(Entry entry) {
+    JSRuntime jsRuntime = entry.jsRuntime;
+    JSContext jsContext = entry.jsContext;
+    if (jsContext.hasOpenScope()) {
+      throw new IllegalStateException("A JSValueScope is left open");
+    }
+
+    // Jobs run before the restore, so it undoes what they change
+    long deadline = System.nanoTime() + RESET_JOBS_TIMEOUT_NANOS;
+    jsRuntime.setInterruptHandler(() -> System.nanoTime() - deadline > 0);
+    int count = jsContext.executePendingJobs(MAX_RESET_JOBS, deadline);
+    // The budget may be used up by exactly the last job
+    boolean jobsLeft = count == MAX_RESET_JOBS && jsContext.executePendingJobs(1, deadline) != 0;
+    if (jobsLeft || System.nanoTime() - deadline > 0) {
+      throw new IllegalStateException("Pending jobs are left");
+    }
+
+    jsRuntime.setInterruptHandler(entry.interruptHandler);
+    jsRuntime.setGCListener(entry.gcListener);
+    jsRuntime.setMallocLimit(entry.mallocLimit);
+    jsRuntime.setGCThreshold(entry.gcThreshold);
+    jsContext.restoreCheckpoint();
+  }
+
+  // Guarded by this
+  private List<Entry> evictIdleEntries(long now) {
+    List<Entry> evicted = null;
+    Iterator<Entry> iterator = idleEntries.descendingIterator();
+    while (size > coreSize && iterator.hasNext()) {
+      Entry entry = iterator.next();
+      if (now - entry.idleSince < idleTimeoutNanos) break;
+      iterator.remove();
+      size--;
+      evictionCount++;
+      if (evicted == null) evicted = new ArrayList<>();
+      evicted.add(entry);
+    }
+    return evicted;
+  }
+
+  private static void closeEntries(@Nullable List<Entry> entries) {
+    if (entries == null) return;
+    for (Entry entry : entries) {
+      entry.close();
+    }
+  }
+
+  /**
+   * Closes JSRuntimes idle for longer than the idle timeout, keeping the core size.
+   * It also happens on every borrow.
+   *
+   * @return the number of closed JSRuntimes
+   */
+  public int evictIdle() {
+    List<Entry> evicted;
+    synchronized (this) {
+      checkClosed();
+      evicted = evictIdleEntries(System.nanoTime());
+    }
+    closeEntries(evicted);
+    return evicted != null ? evicted.size() : 0;
+  }
+
+  public synchronized JSRuntimePoolStats getStats() {
+    return new JSRuntimePoolStats(size, idleEntries.size(), hitCount, missCount, waitCount, waitNanos, evictionCount);
+  }
+
+  public synchronized boolean isClosed() {
+    return closed;
+  }
+
+  /**
+   * Closes idle JSRuntimes, borrowed ones are closed when returned.
+   */
+  @Override
+  public void close() {
+    List<Entry> entries;
+    synchronized (this) {
+      if (closed) return;
+      closed = true;
+      size -= idleEntries.size();
+      entries = new ArrayList<>(idleEntries);
+      idleEntries.clear();
+      // Wake up waiters to fail
+      notifyAll();
+    }
+    closeEntries(entries);
+  }
+
+  private static final class Entry {
+
+    private final JSRuntime jsRuntime;
+    private final JSContext jsContext;
+    // Settings after warming up
+    private final int mallocLimit;
+    private final long gcThreshold;
+    @Nullable
+    private final JSRuntime.InterruptHandler interruptHandler;
+    @Nullable
+    private final JSRuntime.GCListener gcListener;
+    private long idleSince;
+
+    private Entry(JSRuntime jsRuntime, JSContext jsContext) {
+      this.jsRuntime = jsRuntime;
+      this.jsContext = jsContext;
+      this.mallocLimit = jsRuntime.getMallocLimit();
+      this.gcThreshold = jsRuntime.getGCThreshold();
+      this.interruptHandler = jsRuntime.getInterruptHandler();
+      this.gcListener = jsRuntime.getGCListener();
+    }
+
+    private void close() {
+      jsContext.close();
+      jsRuntime.close();
+    }
+  }
+
+  /**
+   * A borrowed JSRuntime with its JSContext. Closing it returns them to the pool.
+   */
+  public final class Lease implements Closeable {
+
+    @Nullable
+    private Entry entry;
+
+    private Lease(Entry entry) {
+      this.entry = entry;
+    }
+
+    private Entry checkReturned() {
+      if (entry == null) {
+        throw new IllegalStateException("The Lease is returned");
+      }
+      return entry;
+    }
+
+    public JSRuntime getRuntime() {
+      return checkReturned().jsRuntime;
+    }
+
+    public JSContext getContext() {
+      return checkReturned().jsContext;
+    }
+
+    @Override
+    public void close() {
+      if (entry != null) {
+        Entry entryToReturn = entry;
+        entry = null;
+        giveBack(entryToReturn);
+      }
+    }
+  }
+
+  public interface Initializer {
+    /**
+     * Called for every new JSContext before the init bytecode and script,
+     * to set up the JSRuntime and expose java functions.
+     */
+    void onInit(JSRuntime jsRuntime, JSContext jsContext);
+  }
+
+  public static class Builder {
+
+    private final QuickJS quickJS;
+    private int coreSize = 1;
+    private int maxSize = Runtime.getRuntime().availableProcessors();
+    private long idleTimeoutNanos = TimeUnit.MINUTES.toNanos(1);
+    @Nullable
+    private Initializer initializer;
+    @Nullable
+    private byte[] initBytecode;
+    @Nullable
+    private String initScript;
+    @Nullable
+    private String initScriptName;
+
+    public Builder(QuickJS quickJS) {
+      if (quickJS == null) throw new NullPointerException("quickJS == null");
+      this.quickJS = quickJS;
+    }
+
+    /**
+     * The number of JSRuntimes warmed up when the pool is built, and kept by idle eviction.
+     */
+    public Builder setCoreSize(int coreSize) {
+      if (coreSize < 0) {
+        throw new IllegalArgumentException("Only positive number and 0 are accepted as core size");
+      }
+      this.coreSize = coreSize;
+      return this;
+    }
+
+    /**
+     * The max number of JSRuntimes, borrowers wait when all of them are borrowed.
+     */
+    public Builder setMaxSize(int maxSize) {
+      if (maxSize <= 0) {
+        throw new IllegalArgumentException("Only positive number is accepted as max size");
+      }
+      this.maxSize = maxSize;
+      return this;
+    }
+
+    /**
+     * JSRuntimes idle for longer are closed, except the core ones.
+     */
+    public Builder setIdleTimeout(long timeout, TimeUnit unit) {
+      if (timeout < 0) {
+        throw new IllegalArgumentException("Only positive number and 0 are accepted as idle timeout");
+      }
+      this.idleTimeoutNanos = unit.toNanos(timeout);
+      return this;
+    }
+
+    public Builder setInitializer(@Nullable Initializer initializer) {
+      this.initializer = initializer;
+      return this;
+    }
+
+    /**
+     * The bytecode evaluated in every new JSContext, see {@link JSContext#compileJsToBytecode(String)}.
+     */
+    public Builder setInitBytecode(@Nullable byte[] initBytecode) {
+      this.initBytecode = initBytecode;
+      return this;
+    }
+
+    /**
+     * The script evaluated in every new JSContext, after the init bytecode.
+     */
+    public Builder setInitScript(@Nullable String initScript, String fileName) {
+      this.initScript = initScript;
+      this.initScriptName = fileName;
+      return this;
+    }
+
+    public JSRuntimePool build() {
+      if (coreSize > maxSize) {
+        throw new IllegalArgumentException("Core size " + coreSize + " exceeds max size " + maxSize);
+      }
+      return new JSRuntimePool(this);
+    }
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.verve.shiqi.quickjs;
+
+
+import androidx.annotation.NonNull;
+
+/**
+ * A snapshot of the counters of a JSRuntimePool.
+ *
+ * @see JSRuntimePool#getStats()
+ */
+public final class JSRuntimePoolStats {
+
+  private final int size;
+  private final int idleCount;
+  private final long hitCount;
+  private final long missCount;
+  private final long waitCount;
+  private final long waitNanos;
+  private final long evictionCount;
+
+  JSRuntimePoolStats(int size, int idleCount, long hitCount, long missCount, long waitCount, long waitNanos, long evictionCount) {
+    this.size = size;
+    this.idleCount = idleCount;
+    this.hitCount = hitCount;
+    this.missCount = missCount;
+    this.waitCount = waitCount;
+    this.waitNanos = waitNanos;
+    this.evictionCount = evictionCount;
+  }
+
+  /**
+   * The number of JSRuntimes in the pool, borrowed or idle.
+   */
+  public int getSize() {
+    return size;
+  }
+
+  /**
+   * The number of warmed JSRuntimes waiting to be borrowed.
+   */
+  public int getIdleCount() {
+    return idleCount;
+  }
+
+  /**
+   * The number of borrows served by a warmed JSRuntime at once.
+   */
+  public long getHitCount() {
+    return hitCount;
+  }
+
+  /**
+   * The number of borrows which had to create and warm up a JSRuntime.
+   */
+  public long getMissCount() {
+    return missCount;
+  }
+
+  /**
+   * The number of borrows which had to wait, because the pool was at its max size.
+   */
+  public long getWaitCount() {
+    return waitCount;
+  }
+
+  /**
+   * The total time of all waits, in nanoseconds.
+   */
+  public long getWaitNanos() {
+    return waitNanos;
+  }
+
+  /**
+   * The number of idle JSRuntimes closed for exceeding the idle timeout.
+   */
+  public long getEvictionCount() {
+    return evictionCount;
+  }
+
+  @NonNull
+  @Override
+  public String toString() {
+    return "JSRuntimePoolStats{size=" + size + ", idleCount=" + idleCount + ", hitCount=" + hitCount
+        + ", missCount=" + missCount + ", waitCount=" + waitCount + ", waitNanos=" + waitNanos
+        + ", evictionCount=" + evictionCount + "}";
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The owner thread of a thread-confined JSRuntime.
+ * Any thread can post tasks, only this thread takes them.
+ */
+final class JSRuntimeThread extends Thread {
+
+  private static final AtomicInteger threadCount = new AtomicInteger();
+
+  // Lock-free, posting never blocks on the running task
+  private final ConcurrentLinkedQueue<FutureTask<?>> tasks = new ConcurrentLinkedQueue<>();
+  private volatile boolean quit;
+
+  JSRuntimeThread() {
+    super("QuickJS-Runtime-" + threadCount.incrementAndGet());
+    setDaemon(true);
+  }
+
+  /**
+   * Runs the task on this thread.
+   * Tasks posted after {@link #quit()} are cancelled.
+   */
+  <T> Future<T> post(FutureTask<T> task) {
+    tasks.offer(task);
+    if (quit) {
+      // The loop may be gone
+      cancelPendingTasks();
+    } else {
+      LockSupport.unpark(this);
+    }
+    return task;
+  }
+
+  /**
+   * Stops taking tasks after the running one.
+   */
+  void quit() {
+    quit = true;
+    LockSupport.unpark(this);
+  }
+
+  private void cancelPendingTasks() {
+    FutureTask<?> task;
+    while ((task = tasks.poll()) != null) {
+      task.cancel(false);
+    }
+  }
+
+  @Override
+  public void run() {
+    while (!quit) {
+      FutureTask<?> task = tasks.poll();
+      if (task != null) {
+        // FutureTask keeps the exception for the caller
+        task.run();
+      } else {
+        // Returns at once if unparked after the poll
+        LockSupport.park(this);
+      }
+    }
+    cancelPendingTasks();
+  }
+}
@@ -17,19 +17,119 @@
 
 package com.verve.shiqi.quickjs;
 
+import androidx.annotation.Nullable;
+
 /**
  * JavaScript string.
+ *
+ * Its contents stay in native memory until {@link #getString()} is called,
+ * so strings which are only forwarded to other JavaScript calls are never decoded.
  */
 public final class JSString extends JSValue {
 
-  private final String value;
+  @Nullable
+  private String value;
+  private final int length;
 
-  JSString(long pointer, JSContext jsContext, String value) {
+  JSString(long pointer, JSContext jsContext, @Nullable String value, int length) {
     super(pointer, jsContext);
     this.value = value;
+    this.length = length;
   }
 
+  /**
+   * Returns the contents as a Java String. It's fetched on the first call and cached.
+   */
   public String getString() {
+    String value = this.value;
+    if (value == null) {
+      jsContext.jsRuntime.lock();
+      try {
+        long context = jsContext.checkClosed();
+        value = this.value;
+        if (value == null) {
+          value = QuickJS.getValueString(context, pointer);
+          this.value = value;
+        }
+      } finally {
+        jsContext.jsRuntime.unlock();
+      }
+    }
     return value;
   }
+
+  /**
+   * Returns the number of UTF-16 code units.
+   */
+  public int length() {
+    return length;
+  }
+
+  /**
+   * Returns the UTF-16 code unit at the index, without fetching the whole string.
+   */
+  public char charAt(int index) {
+    if (index < 0 || index >= length) {
+      throw new StringIndexOutOfBoundsException(index);
+    }
+    String value = this.value;
+    if (value != null) {
+      return value.charAt(index);
+    }
+    jsContext.jsRuntime.lock();
+    try {
+      jsContext.checkClosed();
+      return QuickJS.getValueStringChar(pointer, index);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns the region from {@code start} (inclusive) to {@code end} (exclusive),
+   * without fetching the whole string.
+   */
+  public String substring(int start, int end) {
+    checkRegion(start, end);
+    String value = this.value;
+    if (value != null) {
+      return value.substring(start, end);
+    }
+    jsContext.jsRuntime.lock();
+    try {
+      long context = jsContext.checkClosed();
+      return QuickJS.getValueStringRegion(context, pointer, start, end);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Copies the region from {@code start} (inclusive) to {@code end} (exclusive)
+   * into {@code dst} at {@code dstStart}, like {@link String#getChars(int, int, char[], int)}.
+   */
+  public void getChars(int start, int end, char[] dst, int dstStart) {
+    checkRegion(start, end);
+    if (dstStart < 0 || dstStart > dst.length - (end - start)) {
+      throw new ArrayIndexOutOfBoundsException(dstStart);
+    }
+    String value = this.value;
+    if (value != null) {
+      value.getChars(start, end, dst, dstStart);
+      return;
+    }
+    jsContext.jsRuntime.lock();
+    try {
+      jsContext.checkClosed();
+      QuickJS.getValueStringChars(pointer, start, end, dst, dstStart);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  private void checkRegion(int start, int end) {
+    if (start < 0 || start > end || end > length) {
+      throw new StringIndexOutOfBoundsException("start " + start + ", end " + end + ", length " + length);
+    }
+  }
 }
@@ -17,15 +17,27 @@
 
 package com.verve.shiqi.quickjs;
 
-// TODO Make JSValue closeable?
+import java.io.Closeable;
 
 /**
  * JSValue is a Javascript value.
  * It could be a number, a object, null, undefined or something else.
+ *
+ * The native value is released when the JSValue is recycled by GC.
+ * Call {@link #close()} or use {@link JSContext#openScope()} to release it earlier.
  */
-public abstract class JSValue {
+public abstract class JSValue implements Closeable {
 
-  final long pointer;
+  /**
+   * The native handle. It's a c pointer to a JSValue copy,
+   * or an immediate handle for values without reference count,
+   * see {@link JSContext#isImmediateHandle(long)}.
+   * JSFloat64 has no handle and is rebuilt from its value on the native side.
+   * It's set to 0 when the JSValue is closed, guarded by jsContext.jsRuntime.
+   */
+  long pointer;
+  // The handle in the JSValue cleaner, 0 if it's not registered, guarded by jsContext.jsRuntime
+  long cleanerHandle;
   final JSContext jsContext;
 
   JSValue(long pointer, JSContext jsContext) {
@@ -47,6 +59,21 @@ public abstract class JSValue {
     }
   }
 
+  /**
+   * Releases the native value now instead of waiting for GC.
+   * The JSValue can't be used after it's closed.
+   * It does nothing if the JSValue owns no native value, like JSInt or JSNull.
+   */
+  @Override
+  public void close() {
+    jsContext.jsRuntime.lock();
+    try {
+      jsContext.closeJSValue(this);
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
   /**
    * @throws IllegalStateException if two JSValues are not from the same JSContext
    */
@@ -55,4 +82,10 @@ public abstract class JSValue {
       throw new IllegalStateException("Two JSValues are not from the same JSContext");
     }
   }
+
+  final void checkSameJSContext(JSAtom jsAtom) {
+    if (jsAtom.jsContext != jsContext) {
+      throw new IllegalStateException("The JSAtom is not from the same JSContext");
+    }
+  }
 }
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import androidx.annotation.Nullable;
+
+import java.io.Closeable;
+import java.util.Arrays;
+
+/**
+ * JSValueScope records every JSValue created in its JSContext while it's open,
+ * and releases all of them in one native call when it's closed.
+ * JSValues that must outlive the scope can be handed over to GC with {@link #promote(JSValue)}.
+ *
+ * <pre>
+ * try (JSValueScope scope = jsContext.openScope()) {
+ *   JSObject result = function.invoke(null, args).cast(JSObject.class);
+ *   ...
+ *   return scope.promote(result);
+ * }
+ * </pre>
+ *
+ * Scopes nest, and must be closed in the reverse order of opening.
+ * A scope only records JSValues created on the thread which opened it,
+ * JSValues created by other threads of a shared JSRuntime are left to GC.
+ *
+ * @see JSContext#openScope()
+ */
+public final class JSValueScope implements Closeable {
+
+  private static final int INITIAL_CAPACITY = 16;
+
+  private final JSContext jsContext;
+  // The thread which opened it
+  final Thread thread;
+  // The scope opened before it, guarded by jsContext.jsRuntime
+  @Nullable
+  JSValueScope parent;
+
+  // Guarded by jsContext.jsRuntime
+  private JSValue[] values = new JSValue[INITIAL_CAPACITY];
+  // Native handles of values, 0 for promoted or closed ones
+  private long[] pointers = new long[INITIAL_CAPACITY];
+  private int size;
+  private boolean closed;
+
+  JSValueScope(JSContext jsContext, @Nullable JSValueScope parent) {
+    this.jsContext = jsContext;
+    this.thread = Thread.currentThread();
+    this.parent = parent;
+  }
+
+  void add(JSValue jsValue) {
+    if (size == values.length) {
+      values = Arrays.copyOf(values, size * 2);
+      pointers = Arrays.copyOf(pointers, size * 2);
+    }
+    values[size] = jsValue;
+    pointers[size] = jsValue.pointer;
+    size++;
+  }
+
+  /**
+   * Returns the number of JSValues recorded by this scope.
+   */
+  public int size() {
+    jsContext.jsRuntime.lock();
+    try {
+      return size;
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  /**
+   * Returns the number of recorded JSValues not promoted or closed, guarded by jsContext.jsRuntime.
+   */
+  int getHandleCount() {
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (values[i] != null && values[i].pointer != 0) count++;
+    }
+    return count;
+  }
+
+  /**
+   * Hands the JSValue over to GC, so it stays alive after this scope and its parents are closed.
+   * JSValues not recorded by them are returned as is.
+   *
+   * @return the JSValue
+   */
+  public <T extends JSValue> T promote(T jsValue) {
+    jsContext.jsRuntime.lock();
+    try {
+      jsContext.checkClosed();
+      if (closed) {
+        throw new IllegalStateException("The JSValueScope is closed");
+      }
+      for (JSValueScope scope = this; scope != null; scope = scope.parent) {
+        if (scope.thread == thread && scope.remove(jsValue)) {
+          jsContext.promoteJSValue(jsValue);
+          break;
+        }
+      }
+      return jsValue;
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+
+  private boolean remove(JSValue jsValue) {
+    // Values created last are the most likely to escape
+    for (int i = size - 1; i >= 0; i--) {
+      if (values[i] == jsValue) {
+        values[i] = null;
+        pointers[i] = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Releases recorded JSValues, guarded by jsContext.jsRuntime.
+   */
+  void release() {
+    if (closed) return;
+    closed = true;
+
+    for (int i = 0; i < size; i++) {
+      JSValue jsValue = values[i];
+      if (jsValue != null) {
+        if (jsValue.pointer == 0) {
+          // Closed by JSValue.close()
+          pointers[i] = 0;
+        } else {
+          jsValue.pointer = 0;
+        }
+      }
+    }
+    if (size > 0) {
+      QuickJS.destroyValues(jsContext.pointer, pointers, size);
+    }
+
+    values = null;
+    pointers = null;
+    size = 0;
+  }
+
+  /**
+   * Releases all recorded JSValues, they can't be used after it.
+   *
+   * @throws IllegalStateException if an inner scope is still open
+   */
+  @Override
+  public void close() {
+    jsContext.jsRuntime.lock();
+    try {
+      if (!closed) {
+        jsContext.closeScope(this);
+      }
+    } finally {
+      jsContext.jsRuntime.unlock();
+    }
+  }
+}
@@ -19,22 +19,50 @@ package com.verve.shiqi.quickjs;
 
 import java.lang.ref.PhantomReference;
 import java.lang.ref.ReferenceQueue;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.Arrays;
 
 /**
  * https://youtu.be/7_caITSjk1k
+ *
+ * Registered objects live in slots of primitive arrays, addressed by handles.
+ * A handle is the slot index with the generation of the slot in the high 32 bits.
+ * The generation is bumped every time the slot is freed,
+ * so stale handles and stale references never touch a reused slot.
  */
 abstract class NativeCleaner<T> {
 
-  private final Set<NativeReference<T>> phantomReferences = new HashSet<>();
+  private static final int INITIAL_CAPACITY = 64;
+  // Native pointers released in one onRemove call
+  static final int BATCH_SIZE = 256;
+  // Collected objects handled in one clean call, the rest are left to next calls
+  private static final int CLEAN_BUDGET = 4 * BATCH_SIZE;
+
   private final ReferenceQueue<T> referenceQueue = new ReferenceQueue<>();
 
+  private long[] pointers = new long[INITIAL_CAPACITY];
+  private int[] generations = new int[INITIAL_CAPACITY];
+  // Keeps phantom references reachable, null for free slots
+  private NativeReference<T>[] references = newReferenceArray(INITIAL_CAPACITY);
+  // Stack of free slots below top
+  private int[] freeSlots = new int[INITIAL_CAPACITY];
+  private int freeCount;
+  // Slots at or above top have never been used
+  private int top;
+  private int size;
+
+  private final long[] removedPointers = new long[BATCH_SIZE];
+  private int removedCount;
+
+  @SuppressWarnings("unchecked")
+  private static <T> NativeReference<T>[] newReferenceArray(int length) {
+    return (NativeReference<T>[]) new NativeReference<?>[length];
+  }
+
   /**
    * Returns the size of not removed objects.
    */
   public int size() {
-    return phantomReferences.size();
+    return size;
   }
 
   /**
@@ -42,52 +70,124 @@ abstract class NativeCleaner<T> {
    *
    * @param referent the object
    * @param pointer the native pointer
+   * @return the handle for {@link #unregister(long)}, never 0
    */
-  public void register(T referent, long pointer) {
-    phantomReferences.add(new NativeReference<>(referent, pointer, referenceQueue));
+  public long register(T referent, long pointer) {
+    int index;
+    if (freeCount > 0) {
+      index = freeSlots[--freeCount];
+    } else {
+      if (top == pointers.length) {
+        int capacity = top * 2;
+        pointers = Arrays.copyOf(pointers, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        references = Arrays.copyOf(references, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+      }
+      index = top++;
+      // Generation 0 is never used, so no handle is 0
+      generations[index] = 1;
+    }
+    int generation = generations[index];
+    pointers[index] = pointer;
+    references[index] = new NativeReference<>(referent, index, generation, referenceQueue);
+    size++;
+    return ((long) generation << 32) | index;
   }
 
   /**
-   * Releases the native resources associated with the native pointer.
+   * Unregisters the object without calling {@link #onRemove(long[], int)}.
+   * The caller takes over the native resources.
+   *
+   * @param handle the handle returned by {@link #register(Object, long)}
+   * @return true if it was registered
+   */
+  public boolean unregister(long handle) {
+    int index = (int) handle;
+    int generation = (int) (handle >>> 32);
+    if (index < 0 || index >= top || generations[index] != generation || references[index] == null) {
+      return false;
+    }
+    references[index].clear();
+    free(index);
+    return true;
+  }
+
+  private void free(int index) {
+    pointers[index] = 0;
+    references[index] = null;
+    generations[index]++;
+    if (generations[index] == 0) generations[index] = 1;
+    freeSlots[freeCount++] = index;
+    size--;
+  }
+
+  /**
+   * Releases the native resources associated with the native pointers.
    * It's called in {@link #clean()} on objects recycled by GC,
-   * or in {@link #forceClean()} on all objects.
+   * or in {@link #forceClean()} on all objects, with at most {@value #BATCH_SIZE} pointers each time.
    * It's only called once on each object.
    *
-   * @param pointer the native pointer
+   * @param pointers the native pointers, the array is reused after the call
+   * @param count the number of native pointers
    */
-  public abstract void onRemove(long pointer);
+  public abstract void onRemove(long[] pointers, int count);
+
+  private void remove(int index) {
+    removedPointers[removedCount++] = pointers[index];
+    free(index);
+    if (removedCount == BATCH_SIZE) {
+      flush();
+    }
+  }
+
+  private void flush() {
+    if (removedCount > 0) {
+      int count = removedCount;
+      removedCount = 0;
+      onRemove(removedPointers, count);
+    }
+  }
 
   /**
-   * Calls {@link #onRemove(long)} on objects recycled by GC.
+   * Calls {@link #onRemove(long[], int)} on objects recycled by GC.
+   * At most {@value #CLEAN_BUDGET} objects are handled,
+   * so a burst after GC is spread over several calls.
    */
   @SuppressWarnings("unchecked")
   public void clean() {
     NativeReference<T> ref;
-    while ((ref = (NativeReference<T>) referenceQueue.poll()) != null) {
-      if (phantomReferences.contains(ref)) {
-        onRemove(ref.pointer);
-        phantomReferences.remove(ref);
+    for (int i = 0; i < CLEAN_BUDGET && (ref = (NativeReference<T>) referenceQueue.poll()) != null; i++) {
+      // The slot might be unregistered and reused by another object
+      if (generations[ref.index] == ref.generation) {
+        remove(ref.index);
       }
     }
+    flush();
   }
 
   /**
-   * Calls {@link #onRemove(long)} on all objects.
+   * Calls {@link #onRemove(long[], int)} on all objects.
    */
   public void forceClean() {
-    for (NativeReference<T> ref : phantomReferences) {
-      onRemove(ref.pointer);
+    for (int i = 0; i < top; i++) {
+      if (references[i] != null) {
+        references[i].clear();
+        remove(i);
+      }
     }
-    phantomReferences.clear();
+    flush();
   }
 
   private static class NativeReference<T> extends PhantomReference<T> {
 
-    private final long pointer;
+    private final int index;
+    private final int generation;
 
-    private NativeReference(T referent, long pointer, ReferenceQueue<? super T> q) {
+    private NativeReference(T referent, int index, int generation, ReferenceQueue<? super T> q) {
       super(referent, q);
-      this.pointer = pointer;
+      this.index = index;
+      this.generation = generation;
     }
   }
 }
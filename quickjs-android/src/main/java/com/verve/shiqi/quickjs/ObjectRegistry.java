@@ -0,0 +1,84 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Holds java objects referenced by native code, which keeps slot indices
+ * instead of one JNI global reference per object.
+ * The same object always takes the same slot, counted by references.
+ */
+final class ObjectRegistry {
+
+  private static final int INITIAL_CAPACITY = 64;
+
+  // Read by native code without the lock.
+  // A slot is filled before its index is handed out, and growing publishes a full copy.
+  private static volatile Object[] slots = new Object[INITIAL_CAPACITY];
+  private static int[] refCounts = new int[INITIAL_CAPACITY];
+  private static int[] freeSlots = new int[INITIAL_CAPACITY];
+  private static int freeCount;
+  private static int top;
+  private static final Map<Object, Integer> indices = new IdentityHashMap<>();
+
+  private ObjectRegistry() {}
+
+  /**
+   * Returns the slot of the object, and adds a reference to it.
+   */
+  static synchronized int acquire(Object object) {
+    Integer index = indices.get(object);
+    if (index != null) {
+      refCounts[index]++;
+      return index;
+    }
+
+    int i;
+    if (freeCount > 0) {
+      i = freeSlots[--freeCount];
+    } else {
+      if (top == refCounts.length) {
+        int capacity = top * 2;
+        slots = Arrays.copyOf(slots, capacity);
+        refCounts = Arrays.copyOf(refCounts, capacity);
+      }
+      i = top++;
+    }
+    slots[i] = object;
+    refCounts[i] = 1;
+    indices.put(object, i);
+    return i;
+  }
+
+  /**
+   * Removes a reference from the slot, the object is dropped with the last one.
+   */
+  static synchronized void release(int index) {
+    if (--refCounts[index] > 0) return;
+
+    indices.remove(slots[index]);
+    slots[index] = null;
+    if (freeCount == freeSlots.length) {
+      freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+    }
+    freeSlots[freeCount++] = index;
+  }
+}
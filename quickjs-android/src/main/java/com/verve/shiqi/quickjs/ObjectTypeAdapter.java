@@ -0,0 +1,139 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.verve.shiqi.quickjs;
+
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts JavaScript values to HashMap, ArrayList, String, Double and Boolean trees.
+ * The whole object graph is walked natively in one call.
+ */
+class ObjectTypeAdapter extends TypeAdapter<Object> {
+
+  /**
+   * Nested objects and arrays deeper than it can't be converted, in both directions.
+   */
+  static final int MAX_DEPTH = 64;
+
+  static final Factory FACTORY = (depot, type) -> {
+    Class<?> rawType = JavaTypes.getRawType(type);
+    if (rawType == Object.class) {
+      return new ObjectTypeAdapter(depot, Object.class);
+    }
+    if (Map.class.isAssignableFrom(rawType) && rawType.isAssignableFrom(HashMap.class)) {
+      if (type instanceof ParameterizedType) {
+        Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+        Type keyType = JavaTypes.removeSubtypeWildcard(args[0]);
+        if (keyType != String.class && keyType != Object.class) return null;
+        if (JavaTypes.removeSubtypeWildcard(args[1]) != Object.class) return null;
+      }
+      return new ObjectTypeAdapter(depot, rawType);
+    }
+    if (List.class.isAssignableFrom(rawType) && rawType.isAssignableFrom(ArrayList.class)) {
+      if (type instanceof ParameterizedType) {
+        Type[] args = ((ParameterizedType) type).getActualTypeArguments();
+        if (JavaTypes.removeSubtypeWildcard(args[0]) != Object.class) return null;
+      }
+      return new ObjectTypeAdapter(depot, rawType);
+    }
+    return null;
+  };
+
+  private final QuickJS quickJS;
+  private final Class<?> rawType;
+
+  private ObjectTypeAdapter(QuickJS quickJS, Class<?> rawType) {
+    this.quickJS = quickJS;
+    this.rawType = rawType;
+  }
+
+  @Override
+  public JSValue toJSValue(JSContext context, Object value) {
+    return toJSValue(context, value, 0);
+  }
+
+  private JSValue toJSValue(JSContext context, Object value, int depth) {
+    if (value == null) return context.createJSNull();
+    if (value instanceof JSValue) return (JSValue) value;
+    if (value instanceof String) return context.createJSString((String) value);
+    if (value instanceof Boolean) return context.createJSBoolean((Boolean) value);
+    if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+      return context.createJSNumber(((Number) value).intValue());
+    }
+    if (value instanceof Number) return context.createJSNumber(((Number) value).doubleValue());
+    if (value instanceof Character) return context.createJSString(value.toString());
+
+    if (value instanceof Map || value instanceof List) {
+      // Self-referencing maps and lists end up here too
+      if (depth >= MAX_DEPTH) {
+        throw new IllegalArgumentException("Exceeds max depth " + MAX_DEPTH);
+      }
+    }
+
+    if (value instanceof Map) {
+      Map<?, ?> map = (Map<?, ?>) value;
+      String[] names = new String[map.size()];
+      JSValue[] values = new JSValue[map.size()];
+      int i = 0;
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        names[i] = String.valueOf(entry.getKey());
+        values[i] = toJSValue(context, entry.getValue(), depth + 1);
+        i++;
+      }
+      JSObject result = context.createJSObject();
+      result.setProperties(names, values);
+      return result;
+    }
+
+    if (value instanceof List) {
+      List<?> list = (List<?>) value;
+      JSArray result = context.createJSArray();
+      for (int i = 0, size = list.size(); i < size; i++) {
+        result.setProperty(i, toJSValue(context, list.get(i), depth + 1));
+      }
+      return result;
+    }
+
+    TypeAdapter<Object> adapter = quickJS.getAdapter(value.getClass());
+    if (adapter instanceof ObjectTypeAdapter) {
+      // It would come back here forever
+      throw new IllegalArgumentException("Can't convert " + value.getClass().getName() + " to JSValue");
+    }
+    return adapter.toJSValue(context, value);
+  }
+
+  @Override
+  public Object fromJSValue(JSContext context, JSValue value) {
+    Object result;
+    context.jsRuntime.lock();
+    try {
+      long pointer = context.checkClosed();
+      result = QuickJS.toJavaObject(pointer, value, MAX_DEPTH);
+    } finally {
+      context.jsRuntime.unlock();
+    }
+    if (result != null && !rawType.isInstance(result)) {
+      throw new JSDataException("expected: " + rawType.getSimpleName() + ", actual: " + result.getClass().getSimpleName());
+    }
+    return result;
+  }
+}
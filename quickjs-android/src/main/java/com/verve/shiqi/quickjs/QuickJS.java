@@ -18,23 +18,28 @@
 package com.verve.shiqi.quickjs;
 
 import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * QuickJS is a resources container to create {@link JSRuntime}s.
  */
 public class QuickJS {
 
-  private static final List<TypeAdapter.Factory> BUILT_IN_FACTORIES = new ArrayList<>(4);
+  private static final List<TypeAdapter.Factory> BUILT_IN_FACTORIES = new ArrayList<>(5);
 
   static {
     BUILT_IN_FACTORIES.add(StandardTypeAdapters.FACTORY);
     BUILT_IN_FACTORIES.add(JSValueAdapter.FACTORY);
     BUILT_IN_FACTORIES.add(ArrayTypeAdapter.FACTORY);
+    BUILT_IN_FACTORIES.add(ObjectTypeAdapter.FACTORY);
     BUILT_IN_FACTORIES.add(InterfaceTypeAdapter.FACTORY);
   }
 
@@ -74,11 +79,56 @@ public class QuickJS {
    * Creates a JSRuntime with resources in this QuickJS.
    */
   public JSRuntime createJSRuntime() {
-    long runtime = QuickJS.createRuntime();
+    return createJSRuntime(false);
+  }
+
+  /**
+   * Creates a JSRuntime with resources in this QuickJS.
+   *
+   * A JSRuntime with a private heap allocates from its own mimalloc heap,
+   * so it doesn't contend with other JSRuntimes, and the whole heap is released at once when it's closed.
+   * mimalloc heaps are thread-local, the JSRuntime and its JSContexts must only be used
+   * on the calling thread. Calls on other threads throw {@link IllegalStateException}.
+   */
+  public JSRuntime createJSRuntime(boolean privateHeap) {
+    long runtime = QuickJS.createRuntime(privateHeap);
     if (runtime == 0) {
       throw new IllegalStateException("Cannot create JSRuntime instance");
     }
-    return new JSRuntime(runtime, this);
+    return new JSRuntime(runtime, this, privateHeap ? Thread.currentThread() : null);
+  }
+
+  /**
+   * Creates a JSRuntime confined to a new dedicated thread, see {@link #createJSRuntime(boolean)}
+   * for privateHeap. The JSRuntime, its JSContexts and JSValues must only be used on that thread.
+   * All of them are created and used in tasks submitted by {@link JSRuntime#submit(java.util.concurrent.Callable)},
+   * which queues them without blocking the submitter. Closing the JSRuntime ends the thread.
+   *
+   * <pre>
+   * JSRuntime runtime = quickJS.createConfinedJSRuntime(true);
+   * Future&lt;Integer&gt; result = runtime.submit(() -&gt; {
+   *   try (JSContext context = runtime.createJSContext()) {
+   *     return context.evaluate("1 + 2", "test.js", int.class);
+   *   }
+   * });
+   * </pre>
+   */
+  public JSRuntime createConfinedJSRuntime(boolean privateHeap) {
+    JSRuntimeThread thread = new JSRuntimeThread();
+    thread.start();
+    // Native stack limits are taken from the creating thread
+    Future<Long> future = thread.post(new FutureTask<>(() -> QuickJS.createRuntime(privateHeap)));
+    long runtime;
+    try {
+      runtime = JSRuntime.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      runtime = 0;
+    }
+    if (runtime == 0) {
+      thread.quit();
+      throw new IllegalStateException("Cannot create JSRuntime instance");
+    }
+    return new JSRuntime(runtime, this, thread);
   }
 
   public static class Builder {
@@ -108,20 +158,28 @@ public class QuickJS {
     System.loadLibrary("quickjs-android");
   }
 
-  static native long createRuntime();
+  static native long createRuntime(boolean privateHeap);
   static native void setRuntimeMallocLimit(long runtime, int mallocLimit);
   static native void setRuntimeMaxStackSize(long runtime, int stackSize);
+  static native void updateRuntimeStackTop(long runtime);
+  static native void getRuntimeMemoryUsage(long runtime, long[] usage);
+  static native void setRuntimeGCThreshold(long runtime, long gcThreshold);
+  static native long getRuntimeGCThreshold(long runtime);
+  static native void runRuntimeGC(long runtime);
+  static native long trimRuntimeMemory(long runtime, int level);
+  static native void setRuntimeGCListener(long runtime, JSRuntime.GCListener gcListener);
   static native void setRuntimeInterruptHandler(long runtime, JSRuntime.InterruptHandler interruptHandler);
   static native void destroyRuntime(long runtime);
 
   static native long createContext(long runtime);
   static native void destroyContext(long context);
+  static native long createContextCheckpoint(long context);
+  static native boolean restoreContextCheckpoint(long context, long checkpoint);
+  static native void destroyContextCheckpoint(long context, long checkpoint);
+
+  static native int createAtom(long context, String name);
+  static native void destroyAtom(long context, int atom);
 
-  static native long createValueUndefined(long context);
-  static native long createValueNull(long context);
-  static native long createValueBoolean(long context, boolean value);
-  static native long createValueInt(long context, int value);
-  static native long createValueFloat64(long context, double value);
   static native long createValueString(long context, String value);
   static native long createValueObject(long context);
   static native long createValueArray(long context);
@@ -142,10 +200,15 @@ public class QuickJS {
   static native boolean isValueArray(long context, long value);
   static native boolean isValueArrayBuffer(long context, long value);
   static native boolean isValueFunction(long context, long value);
+  static native Object describeValue(long context, long value, int[] description);
   static native long getValueProperty(long context, long value, int index);
   static native long getValueProperty(long context, long value, String name);
-  static native boolean setValueProperty(long context, long value, int index, long property);
-  static native boolean setValueProperty(long context, long value, String name, long property);
+  static native long getValuePropertyAtom(long context, long value, int atom);
+  static native long[] getValueProperties(long context, long value, String[] names, int[] descriptions, Object[] payloads);
+  static native boolean setValueProperty(long context, long value, int index, JSValue property);
+  static native boolean setValueProperty(long context, long value, String name, JSValue property);
+  static native boolean setValueProperties(long context, long value, String[] names, JSValue[] properties);
+  static native boolean setValuePropertyAtom(long context, long value, int atom, JSValue property);
   static native boolean[] toBooleanArray(long context, long value);
   static native byte[] toByteArray(long context, long value);
   static native char[] toCharArray(long context, long value);
@@ -154,22 +217,47 @@ public class QuickJS {
   static native long[] toLongArray(long context, long value);
   static native float[] toFloatArray(long context, long value);
   static native double[] toDoubleArray(long context, long value);
-  static native boolean getValueBoolean(long value);
-  static native int getValueInt(long value);
   static native double getValueFloat64(long value);
   static native String getValueString(long context, long value);
+  static native char getValueStringChar(long value, int index);
+  static native String getValueStringRegion(long context, long value, int start, int end);
+  static native void getValueStringChars(long value, int start, int end, char[] dst, int dstStart);
   static native Object getValueJavaObject(long context, long value);
-  static native boolean defineValueProperty(long context, long value, int index, long property, int flags);
-  static native boolean defineValueProperty(long context, long value, String name, long property, int flags);
-  static native long invokeValueFunction(long context, long function, long thisObj, long[] args);
+  static native boolean defineValueProperty(long context, long value, int index, JSValue property, int flags);
+  static native boolean defineValueProperty(long context, long value, String name, JSValue property, int flags);
+  static native boolean defineValuePropertyAtom(long context, long value, int atom, JSValue property, int flags);
+  static native long invokeValueFunction(long context, long function, JSValue thisObj, JSValue[] args);
+  static native long invokeValueFunctionArgs(long context, long function, JSValue thisObj, int argc, JSValue arg0, JSValue arg1, JSValue arg2, JSValue arg3);
+  static native long invokeValueFunctionInt(long context, long function, JSValue thisObj, int argc, int arg0, int arg1);
+  static native long invokeValueFunctionDouble(long context, long function, JSValue thisObj, int argc, double arg0, double arg1);
+  static native long invokeValueFunctionBoolean(long context, long function, JSValue thisObj, int argc, boolean arg0, boolean arg1);
+  static native long invokeValueFunctionString(long context, long function, JSValue thisObj, int argc, String arg0, String arg1);
+  static native int invokeValueFunctionForInt(long context, long function, JSValue thisObj, JSValue[] args);
+  static native double invokeValueFunctionForDouble(long context, long function, JSValue thisObj, JSValue[] args);
+  static native boolean invokeValueFunctionForBoolean(long context, long function, JSValue thisObj, JSValue[] args);
+  static native String invokeValueFunctionForString(long context, long function, JSValue thisObj, JSValue[] args);
   static native void destroyValue(long context, long value);
+  static native void destroyValues(long context, long[] values, int count);
+  static native void getHandleStats(long context, long[] stats);
 
   static native JSException getException(long context);
+  static native JSException toJSException(long context, long value);
   static native long getGlobalObject(long context);
 
+  static native long parseJSON(long context, String json);
+  static native long parseJSONBytes(long context, byte[] json, int start, int length);
+  static native long parseJSONBuffer(long context, ByteBuffer json, int start, int end);
+  static native String stringifyValue(long context, JSValue value, int indent);
+  static native Object toJavaObject(long context, JSValue value, int maxDepth);
+
   static native long evaluate(long context, String sourceCode, String fileName, int flags);
+  static native int evaluateForInt(long context, String sourceCode, String fileName, int flags);
+  static native double evaluateForDouble(long context, String sourceCode, String fileName, int flags);
+  static native boolean evaluateForBoolean(long context, String sourceCode, String fileName, int flags);
+  static native String evaluateForString(long context, String sourceCode, String fileName, int flags);
 
   static native void evaluateBytecode(long context, byte[] bytecode, int flags);
   static native byte[] compileJsToBytecode(long context, String code);
   static native int executePendingJob(long context);
+  static native int executePendingJobs(long context, int maxJobs, long timeoutNanos);
 }
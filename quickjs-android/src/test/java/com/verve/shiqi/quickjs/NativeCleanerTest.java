@@ -0,0 +1,190 @@
+/*
+ * Copyright 2019 Hippo Seven
+ * Copyright 2023-Present Shiqi Mei
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.verve.shiqi.quickjs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.lang.ref.Reference;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class NativeCleanerTest {
+
+  private static class RecordingCleaner extends NativeCleaner<Object> {
+
+    private final List<long[]> batches = new ArrayList<>();
+
+    @Override
+    public void onRemove(long[] pointers, int count) {
+      batches.add(Arrays.copyOf(pointers, count));
+    }
+
+    long[] removed() {
+      List<Long> all = new ArrayList<>();
+      for (long[] batch : batches) {
+        for (long pointer : batch) all.add(pointer);
+      }
+      long[] result = new long[all.size()];
+      for (int i = 0; i < result.length; i++) result[i] = all.get(i);
+      Arrays.sort(result);
+      return result;
+    }
+  }
+
+  private static int slot(long handle) {
+    return (int) handle;
+  }
+
+  private static Object getField(NativeCleaner<?> cleaner, String name) throws Exception {
+    Field field = NativeCleaner.class.getDeclaredField(name);
+    field.setAccessible(true);
+    return field.get(cleaner);
+  }
+
+  @Test
+  public void unregister() {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    Object referent = new Object();
+    long handle = cleaner.register(referent, 1);
+    assertNotEquals(0, handle);
+    assertEquals(1, cleaner.size());
+
+    assertTrue(cleaner.unregister(handle));
+    assertFalse(cleaner.unregister(handle));
+    assertEquals(0, cleaner.size());
+
+    cleaner.forceClean();
+    assertTrue(cleaner.batches.isEmpty());
+  }
+
+  @Test
+  public void staleUnregisterAfterReuse() {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    Object first = new Object();
+    Object second = new Object();
+    long firstHandle = cleaner.register(first, 1);
+    assertTrue(cleaner.unregister(firstHandle));
+    long secondHandle = cleaner.register(second, 2);
+    assertEquals(slot(firstHandle), slot(secondHandle));
+    assertNotEquals(firstHandle, secondHandle);
+
+    assertFalse(cleaner.unregister(firstHandle));
+    assertEquals(1, cleaner.size());
+
+    cleaner.forceClean();
+    assertArrayEquals(new long[] { 2 }, cleaner.removed());
+  }
+
+  @Test
+  public void staleReferenceAfterReuse() throws Exception {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    Object first = new Object();
+    Object second = new Object();
+    long firstHandle = cleaner.register(first, 1);
+    Reference<?> firstReference = ((Reference<?>[]) getField(cleaner, "references"))[slot(firstHandle)];
+    assertTrue(cleaner.unregister(firstHandle));
+    long secondHandle = cleaner.register(second, 2);
+    assertEquals(slot(firstHandle), slot(secondHandle));
+
+    // As if GC queued it before it was unregistered
+    assertTrue(firstReference.enqueue());
+    cleaner.clean();
+    assertTrue(cleaner.batches.isEmpty());
+    assertEquals(1, cleaner.size());
+    assertTrue(cleaner.unregister(secondHandle));
+    assertNotNull(second);
+  }
+
+  @Test
+  public void cleanCollected() throws Exception {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    Object kept = new Object();
+    cleaner.register(kept, 1);
+    cleaner.register(new Object(), 2);
+
+    for (int i = 0; i < 100 && cleaner.batches.isEmpty(); i++) {
+      System.gc();
+      Thread.sleep(10);
+      cleaner.clean();
+    }
+    assertArrayEquals(new long[] { 2 }, cleaner.removed());
+    assertEquals(1, cleaner.size());
+    assertNotNull(kept);
+  }
+
+  @Test
+  public void generationWraparound() throws Exception {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    Object first = new Object();
+    long firstHandle = cleaner.register(first, 1);
+    int index = slot(firstHandle);
+    assertTrue(cleaner.unregister(firstHandle));
+
+    int[] generations = (int[]) getField(cleaner, "generations");
+    generations[index] = -1;
+    Object second = new Object();
+    long secondHandle = cleaner.register(second, 2);
+    assertEquals(index, slot(secondHandle));
+    assertEquals(-1, (int) (secondHandle >>> 32));
+    assertTrue(cleaner.unregister(secondHandle));
+
+    // Generation 0 is skipped, so no handle is 0
+    assertEquals(1, generations[index]);
+    Object third = new Object();
+    long thirdHandle = cleaner.register(third, 3);
+    assertNotEquals(0, thirdHandle);
+    assertEquals(index, slot(thirdHandle));
+    assertFalse(cleaner.unregister(secondHandle));
+    assertEquals(1, cleaner.size());
+  }
+
+  @Test
+  public void forceCleanInBatches() {
+    RecordingCleaner cleaner = new RecordingCleaner();
+    int count = 2 * NativeCleaner.BATCH_SIZE + 10;
+    List<Object> referents = new ArrayList<>();
+    long[] pointers = new long[count];
+    for (int i = 0; i < count; i++) {
+      Object referent = new Object();
+      referents.add(referent);
+      pointers[i] = i + 1;
+      cleaner.register(referent, pointers[i]);
+    }
+
+    cleaner.forceClean();
+    assertEquals(3, cleaner.batches.size());
+    assertEquals(NativeCleaner.BATCH_SIZE, cleaner.batches.get(0).length);
+    assertEquals(NativeCleaner.BATCH_SIZE, cleaner.batches.get(1).length);
+    assertEquals(10, cleaner.batches.get(2).length);
+    assertArrayEquals(pointers, cleaner.removed());
+    assertEquals(0, cleaner.size());
+    assertEquals(count, referents.size());
+
+    cleaner.forceClean();
+    assertEquals(3, cleaner.batches.size());
+  }
+}
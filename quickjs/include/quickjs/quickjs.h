@@ -337,12 +337,28 @@ void JS_SetMaxStackSize(JSRuntime *rt, size_t stack_size);
   used to check stack overflow. */
 void JS_UpdateStackTop(JSRuntime *rt);
 JSRuntime *JS_NewRuntime2(const JSMallocFunctions *mf, void *opaque);
+/* the runtime allocates from its own mimalloc heap, which is released at
+   once by JS_FreeRuntime. mimalloc heaps are thread-local: the runtime
+   must only be used on the thread creating it. */
+JSRuntime *JS_NewRuntimeWithPrivateHeap(void);
 void JS_FreeRuntime(JSRuntime *rt);
 void *JS_GetRuntimeOpaque(JSRuntime *rt);
 void JS_SetRuntimeOpaque(JSRuntime *rt, void *opaque);
 typedef void JS_MarkFunc(JSRuntime *rt, JSGCObjectHeader *gp);
 void JS_MarkValue(JSRuntime *rt, JSValueConst val, JS_MarkFunc *mark_func);
 void JS_RunGC(JSRuntime *rt);
+size_t JS_GetGCThreshold(JSRuntime *rt);
+
+typedef struct JSGCStats {
+  int64_t malloc_size_before, malloc_size_after;
+  /* GC objects freed by the cycle collector */
+  int64_t objects_freed;
+  int64_t duration_ns;
+} JSGCStats;
+
+/* called after each cycle collection, it must not allocate in the runtime */
+typedef void JSGCHook(JSRuntime *rt, const JSGCStats *stats, void *opaque);
+void JS_SetGCHook(JSRuntime *rt, JSGCHook *hook, void *opaque);
 JS_BOOL JS_IsLiveObject(JSRuntime *rt, JSValueConst obj);
 
 JSContext *JS_NewContext(JSRuntime *rt);
@@ -354,6 +370,17 @@ JSRuntime *JS_GetRuntime(JSContext *ctx);
 void JS_SetClassProto(JSContext *ctx, JSClassID class_id, JSValue obj);
 JSValue JS_GetClassProto(JSContext *ctx, JSClassID class_id);
 
+/* A record of the own properties, prototype and extensibility of the
+   global object, the global lexical scope, the built-in prototypes and the
+   objects held by global properties (with their "prototype" property) */
+typedef struct JSContextCheckpoint JSContextCheckpoint;
+JSContextCheckpoint *JS_NewContextCheckpoint(JSContext *ctx);
+/* put the recorded objects back to the checkpoint: properties added since
+   are deleted, changed ones are restored, even if not configurable. Indexed
+   elements of arrays are left as is. return -1 if exception */
+int JS_RestoreContextCheckpoint(JSContext *ctx, JSContextCheckpoint *cp);
+void JS_FreeContextCheckpoint(JSContext *ctx, JSContextCheckpoint *cp);
+
 /* the following functions are used to select the intrinsic object to
   save memory */
 JSContext *JS_NewContextRaw(JSRuntime *rt);
@@ -411,6 +438,13 @@ typedef struct JSMemoryUsage {
 } JSMemoryUsage;
 
 void JS_ComputeMemoryUsage(JSRuntime *rt, JSMemoryUsage *s);
+
+/* levels of JS_TrimMemory, each level includes the lower ones */
+#define JS_TRIM_LEVEL_GC     0 /* run the cycle collector, return free pages */
+#define JS_TRIM_LEVEL_TABLES 1 /* shrink the shape and atom hash tables */
+#define JS_TRIM_LEVEL_CACHES 2 /* drop inline caches, force returning pages */
+/* return the number of bytes reclaimed from the runtime heap */
+int64_t JS_TrimMemory(JSRuntime *rt, int level);
 void JS_DumpMemoryUsage(FILE *fp, const JSMemoryUsage *s, JSRuntime *rt);
 
 /* atom support */
@@ -689,6 +723,8 @@ int JS_ToInt64Ext(JSContext *ctx, int64_t *pres, JSValueConst val);
 
 JSValue JS_NewStringLen(JSContext *ctx, const char *str1, size_t len1);
 JSValue JS_NewString(JSContext *ctx, const char *str);
+JSValue JS_NewStringUTF16(JSContext *ctx, const uint16_t *buf, size_t len);
+const void *JS_GetStringBuffer(JSValueConst val, uint32_t *plen, int *pis_wide);
 JSValue JS_NewAtomString(JSContext *ctx, const char *str);
 JSValue JS_ToString(JSContext *ctx, JSValueConst val);
 JSValue JS_ToPropertyKey(JSContext *ctx, JSValueConst val);
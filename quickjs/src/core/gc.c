@@ -36,6 +36,8 @@
 #include "shape.h"
 #include "string.h"
 
+#include <time.h>
+
 __maybe_unused void JS_DumpObjectHeader(JSRuntime* rt) {
   printf("%14s %4s %4s %14s %10s %s\n", "ADDRESS", "REFS", "SHRF", "PROTO", "CLASS", "PROPS");
 }
@@ -590,6 +592,7 @@ void JS_MarkContext(JSRuntime* rt, JSContext* ctx, JS_MarkFunc* mark_func) {
   JS_MarkValue(rt, ctx->promise_ctor, mark_func);
   JS_MarkValue(rt, ctx->array_ctor, mark_func);
   JS_MarkValue(rt, ctx->regexp_ctor, mark_func);
+  JS_MarkValue(rt, ctx->string_ctor, mark_func);
   JS_MarkValue(rt, ctx->function_ctor, mark_func);
   JS_MarkValue(rt, ctx->function_proto, mark_func);
 
@@ -756,9 +759,11 @@ void gc_scan(JSRuntime* rt) {
   }
 }
 
-void gc_free_cycles(JSRuntime* rt) {
+/* return the number of freed GC objects */
+int64_t gc_free_cycles(JSRuntime* rt) {
   struct list_head *el, *el1;
   JSGCObjectHeader* p;
+  int64_t freed = 0;
 #ifdef DUMP_GC_FREE
   BOOL header_done = FALSE;
 #endif
@@ -785,6 +790,7 @@ void gc_free_cycles(JSRuntime* rt) {
         JS_DumpGCObject(rt, p);
 #endif
         free_gc_object(rt, p);
+        freed++;
         break;
       default:
         list_del(&p->link);
@@ -801,9 +807,24 @@ void gc_free_cycles(JSRuntime* rt) {
   }
 
   init_list_head(&rt->gc_zero_ref_count_list);
+  return freed;
+}
+
+static int64_t gc_now_ns(void) {
+  struct timespec ts;
+  clock_gettime(CLOCK_MONOTONIC, &ts);
+  return (int64_t)ts.tv_sec * 1000000000 + ts.tv_nsec;
 }
 
 void JS_RunGC(JSRuntime* rt) {
+  JSGCStats stats;
+  int64_t start = 0;
+
+  if (rt->gc_hook) {
+    stats.malloc_size_before = rt->malloc_state.malloc_size;
+    start = gc_now_ns();
+  }
+
   /* decrement the reference of the children of each object. mark =
      1 after this pass. */
   gc_decref(rt);
@@ -812,7 +833,18 @@ void JS_RunGC(JSRuntime* rt) {
   gc_scan(rt);
 
   /* free the GC objects in a cycle */
-  gc_free_cycles(rt);
+  stats.objects_freed = gc_free_cycles(rt);
+
+  if (rt->gc_hook) {
+    stats.duration_ns = gc_now_ns() - start;
+    stats.malloc_size_after = rt->malloc_state.malloc_size;
+    rt->gc_hook(rt, &stats, rt->gc_hook_opaque);
+  }
+}
+
+void JS_SetGCHook(JSRuntime* rt, JSGCHook* hook, void* opaque) {
+  rt->gc_hook = hook;
+  rt->gc_hook_opaque = opaque;
 }
 
 /* Return false if not an object or if the object has already been
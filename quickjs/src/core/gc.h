@@ -86,7 +86,7 @@ void gc_decref(JSRuntime* rt);
 void gc_scan_incref_child(JSRuntime* rt, JSGCObjectHeader* p);
 void gc_scan_incref_child2(JSRuntime* rt, JSGCObjectHeader* p);
 void gc_scan(JSRuntime* rt);
-void gc_free_cycles(JSRuntime* rt);
+int64_t gc_free_cycles(JSRuntime* rt);
 
     void free_var_ref(JSRuntime* rt, JSVarRef* var_ref);
 void free_object(JSRuntime* rt, JSObject* p);
@@ -136,6 +136,31 @@ int free_ic(InlineCache *ic) {
   return 0;
 }
 
+/* drop the cached shapes and prototypes, the slots stay valid and
+   are refilled by the next accesses */
+void clear_ic(InlineCache *ic) {
+  uint32_t i, j;
+  JSRuntime *rt;
+  JSShape *sh;
+  InlineCacheRingItem *ci;
+  rt = ic->ctx->rt;
+  for (i = 0; i < ic->count; i++) {
+    for (j = 0; j < IC_CACHE_ITEM_CAPACITY; j++) {
+      ci = ic->cache[i].buffer + j;
+      sh = ci->shape;
+      if (!sh)
+        continue;
+      if (ci->watchpoint_ref)
+        // must be called before js_free_shape_null
+        js_shape_delete_watchpoints(rt, sh, ci);
+      ci->shape = NULL;
+      ci->prop_offset = 0;
+      js_free_shape_null(rt, sh);
+    }
+    ic->cache[i].index = 0;
+  }
+}
+
 force_inline uint32_t add_ic_slot(InlineCache *ic, JSAtom atom, JSObject *object,
                      uint32_t prop_offset, JSObject* prototype) {
   int32_t i;
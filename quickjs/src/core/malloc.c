@@ -171,7 +171,7 @@ no_inline int js_realloc_array(JSContext* ctx, void** parray, int elem_size, int
   return 0;
 }
 
-void* js_def_malloc(JSMallocState* s, size_t size) {
+static inline void* js_heap_malloc_in(JSMallocState* s, mi_heap_t* heap, size_t size) {
   void* ptr;
 
   /* Do not allocate zero bytes: behavior is platform dependent */
@@ -180,7 +180,7 @@ void* js_def_malloc(JSMallocState* s, size_t size) {
   if (unlikely(s->malloc_size + size > s->malloc_limit))
     return NULL;
 
-  ptr = mi_malloc(size);
+  ptr = mi_heap_malloc(heap, size);
   if (!ptr)
     return NULL;
 
@@ -189,22 +189,13 @@ void* js_def_malloc(JSMallocState* s, size_t size) {
   return ptr;
 }
 
-void js_def_free(JSMallocState* s, void* ptr) {
-  if (!ptr)
-    return;
-
-  s->malloc_count--;
-  s->malloc_size -= js_def_malloc_usable_size(ptr) + MALLOC_OVERHEAD;
-  mi_free(ptr);
-}
-
-void* js_def_realloc(JSMallocState* s, void* ptr, size_t size) {
+static inline void* js_heap_realloc_in(JSMallocState* s, mi_heap_t* heap, void* ptr, size_t size) {
   size_t old_size;
 
   if (!ptr) {
     if (size == 0)
       return NULL;
-    return js_def_malloc(s, size);
+    return js_heap_malloc_in(s, heap, size);
   }
   old_size = js_def_malloc_usable_size(ptr);
   if (size == 0) {
@@ -216,7 +207,7 @@ void* js_def_realloc(JSMallocState* s, void* ptr, size_t size) {
   if (s->malloc_size + size - old_size > s->malloc_limit)
     return NULL;
 
-  ptr = mi_realloc(ptr, size);
+  ptr = mi_heap_realloc(heap, ptr, size);
   if (!ptr)
     return NULL;
 
@@ -224,8 +215,39 @@ void* js_def_realloc(JSMallocState* s, void* ptr, size_t size) {
   return ptr;
 }
 
+void* js_def_malloc(JSMallocState* s, size_t size) {
+  return js_heap_malloc_in(s, mi_heap_get_default(), size);
+}
+
+void js_def_free(JSMallocState* s, void* ptr) {
+  if (!ptr)
+    return;
+
+  s->malloc_count--;
+  s->malloc_size -= js_def_malloc_usable_size(ptr) + MALLOC_OVERHEAD;
+  mi_free(ptr);
+}
+
+void* js_def_realloc(JSMallocState* s, void* ptr, size_t size) {
+  return js_heap_realloc_in(s, mi_heap_get_default(), ptr, size);
+}
+
+/* allocation functions of runtimes with a private heap, the heap is the opaque */
+void* js_private_heap_malloc(JSMallocState* s, size_t size) {
+  return js_heap_malloc_in(s, s->opaque, size);
+}
+
+void* js_private_heap_realloc(JSMallocState* s, void* ptr, size_t size) {
+  return js_heap_realloc_in(s, s->opaque, ptr, size);
+}
+
 /* use -1 to disable automatic GC */
 void JS_SetGCThreshold(JSRuntime *rt, size_t gc_threshold)
 {
   rt->malloc_gc_threshold = gc_threshold;
+}
+
+size_t JS_GetGCThreshold(JSRuntime *rt)
+{
+  return rt->malloc_gc_threshold;
 }
\ No newline at end of file
@@ -49,6 +49,8 @@ static inline void js_dbuf_init(JSContext* ctx, DynBuf* s) {
 void* js_def_malloc(JSMallocState* s, size_t size);
 void js_def_free(JSMallocState* s, void* ptr);
 void* js_def_realloc(JSMallocState* s, void* ptr, size_t size);
+void* js_private_heap_malloc(JSMallocState* s, size_t size);
+void* js_private_heap_realloc(JSMallocState* s, void* ptr, size_t size);
 size_t js_malloc_usable_size_unknown(const void* ptr);
 
 
@@ -25,6 +25,8 @@
 
 #include "memory.h"
 #include "function.h"
+#include "gc.h"
+#include "ic.h"
 #include "runtime.h"
 #include "shape.h"
 #include "string.h"
@@ -553,3 +555,77 @@ void JS_DumpMemoryUsage(FILE *fp, const JSMemoryUsage *s, JSRuntime *rt)
             "binary objects", s->binary_object_count, s->binary_object_size);
   }
 }
+
+static void js_trim_inline_caches(JSRuntime *rt) {
+  struct list_head *el;
+  JSGCObjectHeader *gp;
+  JSFunctionBytecode *b, **tab;
+  int i, count;
+
+  count = 0;
+  list_for_each(el, &rt->gc_obj_list) {
+    gp = list_entry(el, JSGCObjectHeader, link);
+    if (gp->gc_obj_type == JS_GC_OBJ_TYPE_FUNCTION_BYTECODE)
+      count++;
+  }
+  if (count == 0)
+    return;
+  tab = js_malloc_rt(rt, sizeof(tab[0]) * count);
+  if (!tab)
+    return;
+
+  /* freeing cached shapes may free objects, so the functions are
+     collected and pinned before the gc list is modified */
+  i = 0;
+  list_for_each(el, &rt->gc_obj_list) {
+    gp = list_entry(el, JSGCObjectHeader, link);
+    if (gp->gc_obj_type == JS_GC_OBJ_TYPE_FUNCTION_BYTECODE) {
+      gp->ref_count++;
+      tab[i++] = (JSFunctionBytecode *)gp;
+    }
+  }
+  for (i = 0; i < count; i++) {
+    b = tab[i];
+    if (b->ic)
+      clear_ic(b->ic);
+  }
+  for (i = 0; i < count; i++)
+    JS_FreeValueRT(rt, JS_MKPTR(JS_TAG_FUNCTION_BYTECODE, tab[i]));
+  js_free_rt(rt, tab);
+}
+
+static void js_trim_hash_tables(JSRuntime *rt) {
+  int bits, size;
+
+  /* smallest size not growing on the next insertion, see add_shape_property */
+  bits = 4;
+  while (2 * (rt->shape_hash_count + 1) > (1 << bits))
+    bits++;
+  if (bits < rt->shape_hash_bits)
+    resize_shape_hash(rt, bits);
+
+  /* JS_InitAtoms starts with 1024 */
+  size = 1024;
+  while (rt->atom_count >= size)
+    size *= 2;
+  if (size < rt->atom_hash_size)
+    JS_ResizeAtomHash(rt, size);
+}
+
+int64_t JS_TrimMemory(JSRuntime *rt, int level)
+{
+  int64_t malloc_size = rt->malloc_state.malloc_size;
+
+  if (level >= JS_TRIM_LEVEL_CACHES)
+    js_trim_inline_caches(rt);
+  /* also frees what the inline caches kept alive */
+  JS_RunGC(rt);
+  if (level >= JS_TRIM_LEVEL_TABLES)
+    js_trim_hash_tables(rt);
+  if (rt->heap)
+    mi_heap_collect(rt->heap, level >= JS_TRIM_LEVEL_CACHES);
+  else
+    mi_collect(level >= JS_TRIM_LEVEL_CACHES);
+
+  return malloc_size - (int64_t)rt->malloc_state.malloc_size;
+}
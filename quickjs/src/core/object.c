@@ -32,6 +32,7 @@
 #include "exception.h"
 #include "function.h"
 #include "gc.h"
+#include "ic.h"
 #include "parser.h"
 #include "runtime.h"
 #include "shape.h"
@@ -2297,4 +2298,261 @@ JSValue JS_NewObjectProto(JSContext* ctx, JSValueConst proto) {
 JSValue JS_NewObject(JSContext* ctx) {
   /* inline JS_NewObjectClass(ctx, JS_CLASS_OBJECT); */
   return JS_NewObjectProtoClass(ctx, ctx->class_proto[JS_CLASS_OBJECT], JS_CLASS_OBJECT);
-}
\ No newline at end of file
+}
+
+typedef struct JSCheckpointProperty {
+  JSAtom atom;
+  int flags;
+  JSProperty u;
+} JSCheckpointProperty;
+
+typedef struct JSCheckpointObject {
+  JSObject* p;
+  JSObject* proto;
+  BOOL extensible;
+  int prop_count;
+  JSCheckpointProperty* props; /* sorted by atom */
+} JSCheckpointObject;
+
+struct JSContextCheckpoint {
+  int object_count;
+  int object_size;
+  JSCheckpointObject* objects;
+};
+
+static int js_checkpoint_property_cmp(const void* a, const void* b) {
+  JSAtom atom_a = ((const JSCheckpointProperty*)a)->atom;
+  JSAtom atom_b = ((const JSCheckpointProperty*)b)->atom;
+  return atom_a < atom_b ? -1 : atom_a > atom_b;
+}
+
+/* take a reference to the content of a property */
+static void js_checkpoint_dup_property(JSContext* ctx, JSProperty* pr, int flags) {
+  switch (flags & JS_PROP_TMASK) {
+    case JS_PROP_NORMAL:
+      JS_DupValue(ctx, pr->u.value);
+      break;
+    case JS_PROP_GETSET:
+      if (pr->u.getset.getter)
+        JS_DupValue(ctx, JS_MKPTR(JS_TAG_OBJECT, pr->u.getset.getter));
+      if (pr->u.getset.setter)
+        JS_DupValue(ctx, JS_MKPTR(JS_TAG_OBJECT, pr->u.getset.setter));
+      break;
+    case JS_PROP_AUTOINIT:
+      JS_DupContext(js_autoinit_get_realm(pr));
+      break;
+  }
+}
+
+static BOOL js_checkpoint_same_property(JSCheckpointProperty* cpr, JSShapeProperty* prs, JSProperty* pr) {
+  if (cpr->flags != prs->flags)
+    return FALSE;
+  switch (cpr->flags & JS_PROP_TMASK) {
+    case JS_PROP_NORMAL:
+      if (JS_VALUE_GET_TAG(cpr->u.u.value) != JS_VALUE_GET_TAG(pr->u.value))
+        return FALSE;
+      if (JS_VALUE_HAS_REF_COUNT(pr->u.value))
+        return JS_VALUE_GET_PTR(cpr->u.u.value) == JS_VALUE_GET_PTR(pr->u.value);
+      if (JS_TAG_IS_FLOAT64(JS_VALUE_GET_TAG(pr->u.value)))
+        return memcmp(&cpr->u.u.value, &pr->u.value, sizeof(JSValue)) == 0;
+      return JS_VALUE_GET_INT(cpr->u.u.value) == JS_VALUE_GET_INT(pr->u.value);
+    case JS_PROP_GETSET:
+      return cpr->u.u.getset.getter == pr->u.getset.getter && cpr->u.u.getset.setter == pr->u.getset.setter;
+    case JS_PROP_AUTOINIT:
+      return cpr->u.u.init.realm_and_id == pr->u.init.realm_and_id && cpr->u.u.init.opaque == pr->u.init.opaque;
+    default:
+      return TRUE;
+  }
+}
+
+static int js_checkpoint_add_object(JSContext* ctx, JSContextCheckpoint* cp, JSValueConst obj) {
+  JSCheckpointObject* cpo;
+  JSShape* sh;
+  JSShapeProperty* prs;
+  JSObject* p;
+  int i;
+
+  if (JS_VALUE_GET_TAG(obj) != JS_TAG_OBJECT)
+    return 0;
+  p = JS_VALUE_GET_OBJ(obj);
+  for (i = 0; i < cp->object_count; i++) {
+    if (cp->objects[i].p == p)
+      return 0;
+  }
+
+  if (cp->object_count == cp->object_size) {
+    int new_size = max_int(cp->object_size * 3 / 2, 64);
+    JSCheckpointObject* new_objects = js_realloc(ctx, cp->objects, sizeof(cp->objects[0]) * new_size);
+    if (!new_objects)
+      return -1;
+    cp->objects = new_objects;
+    cp->object_size = new_size;
+  }
+
+  sh = p->shape;
+  cpo = &cp->objects[cp->object_count];
+  cpo->props = js_malloc(ctx, sizeof(cpo->props[0]) * max_int(sh->prop_count, 1));
+  if (!cpo->props)
+    return -1;
+  cpo->prop_count = 0;
+  for (i = 0, prs = get_shape_prop(sh); i < sh->prop_count; i++, prs++) {
+    JSCheckpointProperty* cpr;
+    /* variable references are never restored, keep no reference to them */
+    if (prs->atom == JS_ATOM_NULL || (prs->flags & JS_PROP_TMASK) == JS_PROP_VARREF)
+      continue;
+    cpr = &cpo->props[cpo->prop_count++];
+    cpr->atom = JS_DupAtom(ctx, prs->atom);
+    cpr->flags = prs->flags;
+    cpr->u = p->prop[i];
+    js_checkpoint_dup_property(ctx, &cpr->u, cpr->flags);
+  }
+  qsort(cpo->props, cpo->prop_count, sizeof(cpo->props[0]), js_checkpoint_property_cmp);
+
+  cpo->p = JS_VALUE_GET_OBJ(JS_DupValue(ctx, obj));
+  cpo->proto = sh->proto;
+  if (cpo->proto)
+    JS_DupValue(ctx, JS_MKPTR(JS_TAG_OBJECT, cpo->proto));
+  cpo->extensible = p->extensible;
+  cp->object_count++;
+  return 0;
+}
+
+JSContextCheckpoint* JS_NewContextCheckpoint(JSContext* ctx) {
+  JSContextCheckpoint* cp;
+  JSObject* global;
+  JSShapeProperty* prs;
+  int i, n;
+
+  cp = js_mallocz(ctx, sizeof(*cp));
+  if (!cp)
+    return NULL;
+
+  if (js_checkpoint_add_object(ctx, cp, ctx->global_obj) || js_checkpoint_add_object(ctx, cp, ctx->global_var_obj))
+    goto fail;
+  for (i = 0; i < ctx->rt->class_count; i++) {
+    if (js_checkpoint_add_object(ctx, cp, ctx->class_proto[i]))
+      goto fail;
+  }
+  if (js_checkpoint_add_object(ctx, cp, ctx->function_proto) || js_checkpoint_add_object(ctx, cp, ctx->iterator_proto) ||
+      js_checkpoint_add_object(ctx, cp, ctx->async_iterator_proto))
+    goto fail;
+
+  /* constructors, namespaces and other objects of global properties */
+  global = JS_VALUE_GET_OBJ(ctx->global_obj);
+  n = global->shape->prop_count;
+  for (i = 0; i < n; i++) {
+    JSObject* p;
+    JSProperty* pr;
+    prs = &get_shape_prop(global->shape)[i];
+    if (prs->atom == JS_ATOM_NULL || (prs->flags & JS_PROP_TMASK) != JS_PROP_NORMAL)
+      continue;
+    if (js_checkpoint_add_object(ctx, cp, global->prop[i].u.value))
+      goto fail;
+    if (JS_VALUE_GET_TAG(global->prop[i].u.value) != JS_TAG_OBJECT)
+      continue;
+    p = JS_VALUE_GET_OBJ(global->prop[i].u.value);
+    prs = find_own_property(&pr, p, JS_ATOM_prototype);
+    if (prs && (prs->flags & JS_PROP_TMASK) == JS_PROP_NORMAL) {
+      if (js_checkpoint_add_object(ctx, cp, pr->u.value))
+        goto fail;
+    }
+  }
+  return cp;
+
+fail:
+  JS_FreeContextCheckpoint(ctx, cp);
+  return NULL;
+}
+
+static int js_checkpoint_restore_object(JSContext* ctx, JSCheckpointObject* cpo) {
+  JSObject* p = cpo->p;
+  JSShapeProperty* prs;
+  JSProperty* pr;
+  JSAtom* stale_atoms;
+  int i, stale_count, ret = -1;
+
+  /* properties added or changed since the checkpoint */
+  stale_atoms = js_malloc(ctx, sizeof(stale_atoms[0]) * max_int(p->shape->prop_count, 1));
+  if (!stale_atoms)
+    return -1;
+  stale_count = 0;
+  for (i = 0, prs = get_shape_prop(p->shape); i < p->shape->prop_count; i++, prs++) {
+    JSCheckpointProperty key, *cpr;
+    /* the length of arrays and internal references are never touched */
+    if (prs->atom == JS_ATOM_NULL || (prs->flags & JS_PROP_LENGTH) || (prs->flags & JS_PROP_TMASK) == JS_PROP_VARREF)
+      continue;
+    key.atom = prs->atom;
+    cpr = bsearch(&key, cpo->props, cpo->prop_count, sizeof(cpo->props[0]), js_checkpoint_property_cmp);
+    if (cpr && js_checkpoint_same_property(cpr, prs, &p->prop[i]))
+      continue;
+    stale_atoms[stale_count++] = JS_DupAtom(ctx, prs->atom);
+  }
+
+  for (i = 0; i < stale_count; i++) {
+    prs = find_own_property(&pr, p, stale_atoms[i]);
+    if (prs && !(prs->flags & JS_PROP_CONFIGURABLE)) {
+      if (js_shape_prepare_update(ctx, p, &prs))
+        goto done;
+      prs->flags |= JS_PROP_CONFIGURABLE;
+    }
+    if (delete_property(ctx, p, stale_atoms[i]) < 0)
+      goto done;
+  }
+
+  /* recorded properties which are gone */
+  for (i = 0; i < cpo->prop_count; i++) {
+    JSCheckpointProperty* cpr = &cpo->props[i];
+    if (cpr->flags & JS_PROP_LENGTH)
+      continue;
+    if (find_own_property(&pr, p, cpr->atom))
+      continue;
+    if (ic_delete_shape_proto_watchpoints(ctx->rt, p->shape, cpr->atom))
+      goto done;
+    pr = add_property(ctx, p, cpr->atom, cpr->flags);
+    if (!pr)
+      goto done;
+    *pr = cpr->u;
+    js_checkpoint_dup_property(ctx, pr, cpr->flags);
+  }
+
+  if (p->shape->proto != cpo->proto) {
+    JSValue proto = cpo->proto ? JS_MKPTR(JS_TAG_OBJECT, cpo->proto) : JS_NULL;
+    p->extensible = TRUE;
+    if (JS_SetPrototypeInternal(ctx, JS_MKPTR(JS_TAG_OBJECT, p), proto, FALSE) < 0)
+      goto done;
+  }
+  p->extensible = cpo->extensible;
+  ret = 0;
+
+done:
+  for (i = 0; i < stale_count; i++)
+    JS_FreeAtom(ctx, stale_atoms[i]);
+  js_free(ctx, stale_atoms);
+  return ret;
+}
+
+int JS_RestoreContextCheckpoint(JSContext* ctx, JSContextCheckpoint* cp) {
+  int i;
+  for (i = 0; i < cp->object_count; i++) {
+    if (js_checkpoint_restore_object(ctx, &cp->objects[i]))
+      return -1;
+  }
+  return 0;
+}
+
+void JS_FreeContextCheckpoint(JSContext* ctx, JSContextCheckpoint* cp) {
+  int i, j;
+  for (i = 0; i < cp->object_count; i++) {
+    JSCheckpointObject* cpo = &cp->objects[i];
+    for (j = 0; j < cpo->prop_count; j++) {
+      free_property(ctx->rt, &cpo->props[j].u, cpo->props[j].flags);
+      JS_FreeAtom(ctx, cpo->props[j].atom);
+    }
+    js_free(ctx, cpo->props);
+    if (cpo->proto)
+      JS_FreeValue(ctx, JS_MKPTR(JS_TAG_OBJECT, cpo->proto));
+    JS_FreeValue(ctx, JS_MKPTR(JS_TAG_OBJECT, cpo->p));
+  }
+  js_free(ctx, cp->objects);
+  js_free(ctx, cp);
+}
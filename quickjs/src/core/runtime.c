@@ -2743,7 +2743,10 @@ void JS_FreeRuntime(JSRuntime* rt) {
   }
 #endif
 
-  /* free the atoms */
+  /* free the atoms, a private heap releases them at once below */
+#ifndef DUMP_LEAKS
+  if (!rt->heap)
+#endif
   for (i = 0; i < rt->atom_size; i++) {
     JSAtomStruct* p = rt->atom_array[i];
     if (!atom_is_free(p)) {
@@ -2797,7 +2800,11 @@ void JS_FreeRuntime(JSRuntime* rt) {
 
   {
     JSMallocState ms = rt->malloc_state;
+    mi_heap_t* heap = rt->heap;
     rt->mf.js_free(&ms, rt);
+    /* release whatever is left in the private heap without walking it */
+    if (heap)
+      mi_heap_destroy(heap);
   }
 }
 
@@ -2827,6 +2834,7 @@ JSContext* JS_NewContextRaw(JSRuntime* rt) {
     ctx->class_proto[i] = JS_NULL;
   ctx->array_ctor = JS_NULL;
   ctx->regexp_ctor = JS_NULL;
+  ctx->string_ctor = JS_NULL;
   ctx->promise_ctor = JS_NULL;
   init_list_head(&ctx->loaded_modules);
 
@@ -2929,6 +2937,7 @@ void JS_FreeContext(JSContext* ctx) {
   JS_FreeValue(ctx, ctx->promise_ctor);
   JS_FreeValue(ctx, ctx->array_ctor);
   JS_FreeValue(ctx, ctx->regexp_ctor);
+  JS_FreeValue(ctx, ctx->string_ctor);
   JS_FreeValue(ctx, ctx->function_ctor);
   JS_FreeValue(ctx, ctx->function_proto);
 
@@ -3105,6 +3114,29 @@ JSRuntime* JS_NewRuntime(void) {
   return JS_NewRuntime2(&def_malloc_funcs, NULL);
 }
 
+static const JSMallocFunctions private_heap_malloc_funcs = {
+    js_private_heap_malloc,
+    js_def_free,
+    js_private_heap_realloc,
+    mi_usable_size,
+};
+
+JSRuntime* JS_NewRuntimeWithPrivateHeap(void) {
+  JSRuntime* rt;
+  mi_heap_t* heap;
+
+  heap = mi_heap_new();
+  if (!heap)
+    return NULL;
+  rt = JS_NewRuntime2(&private_heap_malloc_funcs, heap);
+  if (!rt) {
+    mi_heap_delete(heap);
+    return NULL;
+  }
+  rt->heap = heap;
+  return rt;
+}
+
 /* the indirection is needed to make 'eval' optional */
 JSValue JS_EvalInternal(JSContext* ctx, JSValueConst this_obj, const char* input, size_t input_len, const char* filename, int flags, int scope_idx) {
   if (unlikely(!ctx->eval_internal)) {
@@ -1466,6 +1466,43 @@ JSValue JS_NewString(JSContext* ctx, const char* str) {
   return JS_NewStringLen(ctx, str, strlen(str));
 }
 
+/* Create a string from UTF-16 code units. 8 bit storage is used if all the
+   code units fit in Latin-1. */
+JSValue JS_NewStringUTF16(JSContext* ctx, const uint16_t* buf, size_t len) {
+  JSString* str;
+  size_t i;
+
+  if (len > JS_STRING_LEN_MAX)
+    return JS_ThrowInternalError(ctx, "string too long");
+  if (len == 0)
+    return JS_AtomToString(ctx, JS_ATOM_empty_string);
+  for (i = 0; i < len; i++) {
+    if (buf[i] >= 0x100)
+      return js_new_string16(ctx, buf, len);
+  }
+  str = js_alloc_string(ctx, len, 0);
+  if (!str)
+    return JS_EXCEPTION;
+  for (i = 0; i < len; i++)
+    str->u.str8[i] = buf[i];
+  str->u.str8[len] = '\0';
+  return JS_MKPTR(JS_TAG_STRING, str);
+}
+
+/* Return the internal storage of a string without copy: Latin-1 bytes if
+   *pis_wide is 0, UTF-16 code units otherwise. Return NULL if val is not a
+   string. The buffer is valid as long as val is alive. */
+const void* JS_GetStringBuffer(JSValueConst val, uint32_t* plen, int* pis_wide) {
+  JSString* p;
+
+  if (JS_VALUE_GET_TAG(val) != JS_TAG_STRING)
+    return NULL;
+  p = JS_VALUE_GET_STRING(val);
+  *plen = p->len;
+  *pis_wide = p->is_wide_char;
+  return p->is_wide_char ? (const void*)p->u.str16 : (const void*)p->u.str8;
+}
+
 JSValue JS_NewAtomString(JSContext* ctx, const char* str) {
   JSAtom atom = JS_NewAtom(ctx, str);
   if (atom == JS_ATOM_NULL)
@@ -167,6 +167,8 @@ typedef enum {
 struct JSRuntime {
     JSMallocFunctions mf;
     JSMallocState malloc_state;
+    /* the private mimalloc heap, NULL if the runtime allocates from the default heap */
+    mi_heap_t *heap;
     const char *rt_info;
 
     int atom_hash_size; /* power of two */
@@ -189,6 +191,8 @@ struct JSRuntime {
     struct list_head tmp_obj_list; /* used during GC */
     JSGCPhaseEnum gc_phase : 8;
     size_t malloc_gc_threshold;
+    JSGCHook *gc_hook;
+    void *gc_hook_opaque;
 #ifdef DUMP_LEAKS
     struct list_head string_list; /* list of JSString.link */
 #endif